@@ -0,0 +1,182 @@
+package org.jenkinsci.plugins.sma;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Loads blobs from the repository across a pool of worker threads.
+ * Each worker reads through its own ObjectReader, and results are always returned in the order they were requested.
+ *
+ */
+public class SMABlobLoader
+{
+    private static final Logger LOG = Logger.getLogger(SMABlobLoader.class.getName());
+
+    private final SMAGit git;
+    private final int threads;
+    private ExecutorService pool;
+
+    /**
+     * Creates an SMABlobLoader
+     *
+     * @param git
+     * @param threads The number of worker threads. Blobs are loaded on the calling thread when this is 1 or less.
+     */
+    public SMABlobLoader(SMAGit git, int threads)
+    {
+        this.git = git;
+        this.threads = threads;
+    }
+
+    /**
+     * Loads the contents of the given blobs, keeping the iteration order of the provided map.
+     *
+     * @param blobs
+     * @return
+     * @throws Exception
+     */
+    public Map<String, byte[]> load(Map<String, ObjectId> blobs) throws Exception
+    {
+        List<String> paths = new ArrayList<String>(blobs.keySet());
+        List<ObjectId> blobIds = new ArrayList<ObjectId>(paths.size());
+
+        for (String path : paths)
+        {
+            blobIds.add(blobs.get(path));
+        }
+
+        byte[][] data = load(blobIds, Long.MAX_VALUE);
+        Map<String, byte[]> contents = new LinkedHashMap<String, byte[]>();
+
+        for (int i = 0; i < paths.size(); i++)
+        {
+            contents.put(paths.get(i), data[i]);
+        }
+
+        return contents;
+    }
+
+    /**
+     * Loads the contents of the given blobs. Blobs larger than maxSize are skipped and returned as null so they can
+     * be streamed instead.
+     *
+     * @param blobIds
+     * @param maxSize
+     * @return An array of blob contents in the same order as blobIds
+     * @throws Exception
+     */
+    public byte[][] load(final List<ObjectId> blobIds, final long maxSize) throws Exception
+    {
+        final byte[][] data = new byte[blobIds.size()][];
+        final AtomicInteger next = new AtomicInteger();
+        int workers = Math.min(threads, blobIds.size());
+
+        if (workers <= 1)
+        {
+            loadNext(blobIds, data, next, maxSize);
+            return data;
+        }
+
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+
+        for (int i = 0; i < workers; i++)
+        {
+            results.add(getPool().submit(new Callable<Void>()
+            {
+                public Void call() throws Exception
+                {
+                    loadNext(blobIds, data, next, maxSize);
+                    return null;
+                }
+            }));
+        }
+
+        try
+        {
+            for (Future<Void> result : results)
+            {
+                result.get();
+            }
+        }
+        catch (ExecutionException e)
+        {
+            for (Future<Void> result : results)
+            {
+                result.cancel(true);
+            }
+
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+
+        return data;
+    }
+
+    /**
+     * Stops the worker threads of this loader.
+     */
+    public void shutdown()
+    {
+        if (pool != null)
+        {
+            pool.shutdownNow();
+            pool = null;
+        }
+    }
+
+    /**
+     * Claims and loads blobs until there are none left, using a reader owned by the current thread.
+     *
+     * @param blobIds
+     * @param data
+     * @param next
+     * @param maxSize
+     * @throws Exception
+     */
+    private void loadNext(List<ObjectId> blobIds, byte[][] data, AtomicInteger next, long maxSize) throws Exception
+    {
+        ObjectReader reader = git.newObjectReader();
+
+        try
+        {
+            int i;
+            while ((i = next.getAndIncrement()) < blobIds.size())
+            {
+                ObjectId blobId = blobIds.get(i);
+
+                if (maxSize == Long.MAX_VALUE || reader.getObjectSize(blobId, Constants.OBJ_BLOB) <= maxSize)
+                {
+                    data[i] = reader.open(blobId, Constants.OBJ_BLOB).getBytes();
+                }
+            }
+        }
+        finally
+        {
+            reader.release();
+        }
+    }
+
+    private ExecutorService getPool()
+    {
+        if (pool == null)
+        {
+            LOG.fine("Starting " + threads + " blob loader threads");
+
+            pool = Executors.newFixedThreadPool(threads, new SMADaemonThreadFactory("SMA blob loader"));
+        }
+
+        return pool;
+    }
+}
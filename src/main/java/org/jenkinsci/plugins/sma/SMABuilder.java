@@ -5,17 +5,21 @@ import hudson.Launcher;
 import hudson.model.*;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
+import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import com.sforce.soap.metadata.TestLevel;
 import net.sf.json.JSONObject;
+import org.eclipse.jgit.lib.ObjectId;
 
 /**
  * @author Anthony Sanchez <senninha09@gmail.com>
@@ -29,6 +33,7 @@ public class SMABuilder extends Builder
     private String serverType;
     private String testLevel;
     private String prTargetBranch;
+    private String apiVersion;
 
     @DataBoundConstructor
     public SMABuilder(Boolean validateEnabled,
@@ -37,7 +42,8 @@ public class SMABuilder extends Builder
                       String securityToken,
                       String serverType,
                       String testLevel,
-                      String prTargetBranch)
+                      String prTargetBranch,
+                      String apiVersion)
     {
         this.username = username;
         this.password = password;
@@ -46,6 +52,7 @@ public class SMABuilder extends Builder
         this.validateEnabled = validateEnabled;
         this.testLevel = testLevel;
         this.prTargetBranch = prTargetBranch;
+        this.apiVersion = apiVersion;
     }
 
     @Override
@@ -58,112 +65,184 @@ public class SMABuilder extends Builder
 
         PrintStream writeToConsole = listener.getLogger();
         List<ParameterValue> parameterValues = new ArrayList<ParameterValue>();
+        SMARunner currentJob = null;
+        SMAZipStats zipStats = new SMAZipStats();
 
         try
         {
-            // Initialize the runner for this job
-            SMARunner currentJob = new SMARunner(build.getEnvironment(listener), prTargetBranch);
-
-            // Build the package and destructiveChanges manifests
-            SMAPackage packageXml = new SMAPackage(currentJob.getPackageMembers(), false);
-            writeToConsole.println("[SMA] Deploying the following metadata:");
-            SMAUtility.printMetadataToConsole(listener, currentJob.getPackageMembers());
-            SMAPackage destructiveChanges;
+            boolean installed = SMAWindowCache.configure(
+                    getDescriptor().getPackedGitMMAP(),
+                    getDescriptor().getPackedGitWindowSize(),
+                    getDescriptor().getPackedGitLimit(),
+                    getDescriptor().getStreamFileThreshold()
+            );
 
-            if (currentJob.getDeployAll() || currentJob.getDestructionMembers().isEmpty())
-            {
-                destructiveChanges = new SMAPackage(new ArrayList<SMAMetadata>(), true);
-            }
-            else
+            if (installed)
             {
-                destructiveChanges = new SMAPackage(currentJob.getDestructionMembers(), true);
-                writeToConsole.println("[SMA] Deleting the following metadata:");
-                SMAUtility.printMetadataToConsole(listener, currentJob.getDestructionMembers());
+                writeToConsole.println("[SMA] Installed JGit window cache configuration: " +
+                        SMAWindowCache.getInstalled());
             }
 
-            // Build the zipped deployment package
-            ByteArrayOutputStream deploymentPackage = SMAUtility.zipPackage(
-                    currentJob.getDeploymentData(),
-                    packageXml,
-                    destructiveChanges
-            );
-
-            // Initialize the connection to Salesforce for this job
-            SMAConnection sfConnection = new SMAConnection(
-                    getUsername(),
-                    getPassword(),
-                    getSecurityToken(),
-                    getServerType(),
-                    getDescriptor().getPollWait(),
-                    getDescriptor().getMaxPoll(),
-                    getDescriptor().getProxyServer(),
-                    getDescriptor().getProxyUser(),
-                    getDescriptor().getProxyPass(),
-                    getDescriptor().getProxyPort()
-            );
-
-            // Deploy to the server
-            String[] specifiedTests = null;
-            TestLevel testLevel = TestLevel.valueOf(getTestLevel());
+            // Initialize the runner for this job
+            currentJob = new SMARunner(build.getEnvironment(listener), prTargetBranch);
+            currentJob.setAPIVersion(getApiVersion());
+            currentJob.loadLedger(getUsername(), getServerType());
+            currentJob.loadValidationCache(getUsername(), getServerType());
+            writeToConsole.println("[SMA] Using Metadata API version " + currentJob.getAPIVersion());
 
-            if (testLevel.equals(TestLevel.RunSpecifiedTests))
+            if (currentJob.isUpToDate())
             {
-                specifiedTests = currentJob.getSpecifiedTests(getDescriptor().getRunTestRegex());
+                // Nothing differs from the ledger, so there is nothing to send
+                JOB_SUCCESS = true;
+                smaDeployResult = "\n[SMA] Every component matches what was last deployed to the organization, " +
+                        "skipping the deployment";
             }
+            else
+            {
+                // Build the package and destructiveChanges manifests
+                SMAPackage packageXml = new SMAPackage(currentJob.getPackageMembers(), false,
+                        currentJob.getAPIVersion());
+                writeToConsole.println("[SMA] Deploying the following metadata:");
+                SMAUtility.printMetadataToConsole(listener, currentJob.getPackageMembers());
+                SMAPackage destructiveChanges;
+
+                if (currentJob.getDeployAll() || currentJob.getDestructionMembers().isEmpty())
+                {
+                    destructiveChanges = new SMAPackage(new ArrayList<SMAMetadata>(), true,
+                            currentJob.getAPIVersion());
+                }
+                else
+                {
+                    destructiveChanges = new SMAPackage(currentJob.getDestructionMembers(), true,
+                            currentJob.getAPIVersion());
+                    writeToConsole.println("[SMA] Deleting the following metadata:");
+                    SMAUtility.printMetadataToConsole(listener, currentJob.getDestructionMembers());
+                }
 
-            JOB_SUCCESS = sfConnection.deployToServer(
-                    deploymentPackage,
-                    testLevel,
-                    specifiedTests,
-                    getValidateEnabled(),
-                    packageXml.containsApex()
-            );
+                String[] specifiedTests = null;
+                TestLevel testLevel = TestLevel.valueOf(getTestLevel());
 
-            if (JOB_SUCCESS)
-            {
-                if (!testLevel.equals(TestLevel.NoTestRun))
+                if (testLevel.equals(TestLevel.RunSpecifiedTests))
                 {
-                    smaDeployResult = sfConnection.getCodeCoverage();
+                    specifiedTests = currentJob.getSpecifiedTests(getDescriptor().getRunTestRegex());
                 }
 
-                smaDeployResult = smaDeployResult + "\n[SMA] Deployment Succeeded";
+                // Identify the package by its contents, so that a validation that already succeeded can be skipped
+                Map<String, ObjectId> deploymentData = currentJob.getDeploymentData();
+                String packageHash = SMAUtility.hashPackage(deploymentData, packageXml, destructiveChanges);
+                String validationKey = SMAValidationCache.getKey(packageHash, testLevel.name(), specifiedTests);
+                writeToConsole.println("[SMA] Package hash: " + packageHash);
 
-                if (!currentJob.getDeployAll())
+                if (getValidateEnabled() && currentJob.isValidated(validationKey))
+                {
+                    JOB_SUCCESS = true;
+                    smaDeployResult = "\n[SMA] This package was already validated against the organization, " +
+                            "skipping validation";
+                }
+                else
                 {
-                    SMAPackage rollbackPackageXml = new SMAPackage(
-                            currentJob.getRollbackMetadata(),
-                            false
+                    // Split the deployment into packages that are within the Metadata API limits
+                    List<SMAChunker.Chunk> chunks = currentJob.getDeploymentChunks();
+
+                    if (chunks.size() > 1)
+                    {
+                        writeToConsole.println("[SMA] The deployment is over the Metadata API limits and will be " +
+                                "deployed in " + chunks.size() + " chunks");
+                    }
+
+                    // Initialize the connection to Salesforce for this job
+                    SMAConnection sfConnection = new SMAConnection(
+                            getUsername(),
+                            getPassword(),
+                            getSecurityToken(),
+                            getServerType(),
+                            getDescriptor().getPollWait(),
+                            getDescriptor().getMaxPoll(),
+                            getDescriptor().getProxyServer(),
+                            getDescriptor().getProxyUser(),
+                            getDescriptor().getProxyPass(),
+                            getDescriptor().getProxyPort(),
+                            currentJob.getAPIVersion()
                     );
 
-                    SMAPackage rollbackDestructiveXml = new SMAPackage(
-                            currentJob.getRollbackAdditions(),
-                            true
+                    // Deploy to the server, each chunk is zipped while the previous one is deployed
+                    SMAChunkedDeployer deployer = new SMAChunkedDeployer(
+                            sfConnection,
+                            currentJob.getGit(),
+                            currentJob.getAPIVersion(),
+                            currentJob.getPackageDir(),
+                            writeToConsole
                     );
-
-                    ByteArrayOutputStream rollbackPackage = SMAUtility.zipPackage(
-                            currentJob.getRollbackData(),
-                            rollbackPackageXml,
-                            rollbackDestructiveXml
+                    deployer.setCompression(currentJob.getCompressionLevel(), currentJob.getZipThreads(), zipStats);
+
+                    JOB_SUCCESS = deployer.deploy(
+                            chunks,
+                            destructiveChanges,
+                            testLevel,
+                            specifiedTests,
+                            getValidateEnabled()
                     );
 
-                    SMAUtility.writeZip(rollbackPackage, currentJob.getRollbackLocation());
-                }
-            }
-            else
-            {
-                smaDeployResult = sfConnection.getComponentFailures();
-
-                if (!TestLevel.valueOf(getTestLevel()).equals(TestLevel.NoTestRun))
-                {
-                    smaDeployResult = smaDeployResult + sfConnection.getTestFailures();
-                    smaDeployResult = smaDeployResult + sfConnection.getCodeCoverageWarnings();
+                    if (JOB_SUCCESS)
+                    {
+                        smaDeployResult = deployer.getResults() + "\n[SMA] Deployment Succeeded";
+
+                        if (getValidateEnabled())
+                        {
+                            currentJob.recordValidation(validationKey);
+                        }
+                        else
+                        {
+                            currentJob.recordDeployment();
+                        }
+
+                        if (!currentJob.getDeployAll())
+                        {
+                            SMAPackage rollbackPackageXml = new SMAPackage(
+                                    currentJob.getRollbackMetadata(),
+                                    false,
+                                    currentJob.getAPIVersion()
+                            );
+
+                            SMAPackage rollbackDestructiveXml = new SMAPackage(
+                                    currentJob.getRollbackAdditions(),
+                                    true,
+                                    currentJob.getAPIVersion()
+                            );
+
+                            // The rollback package is written straight to its file
+                            SMAUtility.zipPackage(
+                                    currentJob.getRollbackData(),
+                                    currentJob.getGit(),
+                                    rollbackPackageXml,
+                                    rollbackDestructiveXml,
+                                    new File(currentJob.getRollbackLocation()),
+                                    currentJob.getCompressionLevel(),
+                                    currentJob.getZipThreads(),
+                                    zipStats
+                            );
+                        }
+                    }
+                    else
+                    {
+                        smaDeployResult = deployer.getResults() + "\n[SMA] Deployment Failed";
+                    }
                 }
-
-                smaDeployResult = smaDeployResult + "\n[SMA] Deployment Failed";
             }
         } catch (Exception e)
         {
             e.printStackTrace(writeToConsole);
+        } finally
+        {
+            if (currentJob != null)
+            {
+                currentJob.close();
+            }
+        }
+
+        if (zipStats.getDeflatedEntries() + zipStats.getStoredEntries() > 0)
+        {
+            writeToConsole.println("[SMA] " + zipStats.getStatistics());
         }
 
         parameterValues.add(new StringParameterValue("smaDeployResult", smaDeployResult));
@@ -209,6 +288,11 @@ public class SMABuilder extends Builder
         return prTargetBranch;
     }
 
+    public String getApiVersion()
+    {
+        return apiVersion;
+    }
+
     @Override
     public DescriptorImpl getDescriptor()
     {
@@ -226,7 +310,10 @@ public class SMABuilder extends Builder
         private String proxyUser;
         private String proxyPass;
         private Integer proxyPort;
-
+        private boolean packedGitMMAP = false;
+        private int packedGitWindowSize = 8 * 1024;
+        private long packedGitLimit = 10 * 1024 * 1024;
+        private int streamFileThreshold = 50 * 1024 * 1024;
 
         public DescriptorImpl()
         {
@@ -267,6 +354,112 @@ public class SMABuilder extends Builder
 
         public Integer getProxyPort() { return proxyPort; }
 
+        public boolean getPackedGitMMAP() { return packedGitMMAP; }
+
+        public int getPackedGitWindowSize() { return packedGitWindowSize; }
+
+        public long getPackedGitLimit() { return packedGitLimit; }
+
+        public int getStreamFileThreshold() { return streamFileThreshold; }
+
+        public FormValidation doCheckApiVersion(@QueryParameter String value)
+        {
+            if (value.trim().isEmpty())
+            {
+                return FormValidation.ok();
+            }
+
+            try
+            {
+                SMAMetadataTypes.normalizeVersion(value);
+                return FormValidation.ok();
+            }
+            catch (IllegalArgumentException e)
+            {
+                return FormValidation.error("Specify a Metadata API version such as " + SMAMetadataTable.API_VERSION);
+            }
+        }
+
+        public FormValidation doCheckPackedGitWindowSize(@QueryParameter String value)
+        {
+            int windowSize;
+
+            try
+            {
+                windowSize = Integer.parseInt(value.trim());
+            }
+            catch (NumberFormatException e)
+            {
+                return FormValidation.error("Specify the window size in bytes");
+            }
+
+            if (SMAWindowCache.clampWindowSize(windowSize) != windowSize)
+            {
+                return FormValidation.warning("The window size must be a power of 2 between " +
+                        SMAWindowCache.MIN_WINDOW_SIZE + " and " + SMAWindowCache.MAX_WINDOW_SIZE + ", " +
+                        SMAWindowCache.clampWindowSize(windowSize) + " will be used");
+            }
+
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckPackedGitLimit(@QueryParameter String value,
+                                                    @QueryParameter String packedGitWindowSize)
+        {
+            long limit;
+
+            try
+            {
+                limit = Long.parseLong(value.trim());
+            }
+            catch (NumberFormatException e)
+            {
+                return FormValidation.error("Specify the cache limit in bytes");
+            }
+
+            int windowSize;
+
+            try
+            {
+                windowSize = SMAWindowCache.clampWindowSize(Integer.parseInt(packedGitWindowSize.trim()));
+            }
+            catch (NumberFormatException e)
+            {
+                windowSize = this.packedGitWindowSize;
+            }
+
+            if (SMAWindowCache.clampLimit(limit, windowSize) != limit)
+            {
+                return FormValidation.warning("The cache limit must hold at least one window, " + windowSize +
+                        " will be used");
+            }
+
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckStreamFileThreshold(@QueryParameter String value)
+        {
+            int threshold;
+
+            try
+            {
+                threshold = Integer.parseInt(value.trim());
+            }
+            catch (NumberFormatException e)
+            {
+                return FormValidation.error("Specify the threshold in bytes");
+            }
+
+            if (SMAWindowCache.clampStreamFileThreshold(threshold) != threshold)
+            {
+                return FormValidation.warning("The threshold must be at least " +
+                        SMAWindowCache.MIN_STREAM_FILE_THRESHOLD + ", " +
+                        SMAWindowCache.MIN_STREAM_FILE_THRESHOLD + " will be used");
+            }
+
+            return FormValidation.ok();
+        }
+
         public ListBoxModel doFillServerTypeItems()
         {
             return new ListBoxModel(
@@ -293,6 +486,13 @@ public class SMABuilder extends Builder
             proxyUser = formData.getString("proxyUser");
             proxyPass = formData.getString("proxyPass");
             proxyPort = formData.optInt("proxyPort");
+            packedGitMMAP = formData.optBoolean("packedGitMMAP");
+            packedGitWindowSize = SMAWindowCache.clampWindowSize(
+                    formData.optInt("packedGitWindowSize", packedGitWindowSize));
+            packedGitLimit = SMAWindowCache.clampLimit(
+                    formData.optLong("packedGitLimit", packedGitLimit), packedGitWindowSize);
+            streamFileThreshold = SMAWindowCache.clampStreamFileThreshold(
+                    formData.optInt("streamFileThreshold", streamFileThreshold));
 
             save();
             return false;
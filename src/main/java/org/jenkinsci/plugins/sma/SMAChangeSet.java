@@ -0,0 +1,291 @@
+package org.jenkinsci.plugins.sma;
+
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.lib.ObjectId;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Indexed representation of the changes between two commits.
+ * The diff is sorted once by change type and path, and only the blob ids are kept so that contents can be loaded
+ * when a component is actually packaged.
+ *
+ */
+public class SMAChangeSet
+{
+    private static final String ADDITION = "A";
+    private static final String MODIFICATION = "M";
+    private static final String ORIGINAL = "O";
+    private static final String DELETION = "D";
+
+    private final String sourceDir;
+    private final Map<String, ObjectId> additions = new TreeMap<String, ObjectId>();
+    private final Map<String, ObjectId> modifications = new TreeMap<String, ObjectId>();
+    private final Map<String, ObjectId> originals = new TreeMap<String, ObjectId>();
+    private final Map<String, ObjectId> deletions = new TreeMap<String, ObjectId>();
+
+    /**
+     * Creates an empty SMAChangeSet
+     *
+     * @param sourceDir Only paths containing this directory are indexed.
+     */
+    public SMAChangeSet(String sourceDir)
+    {
+        this.sourceDir = sourceDir;
+    }
+
+    /**
+     * Creates an SMAChangeSet from the entries of a diff
+     *
+     * @param sourceDir
+     * @param diffs
+     */
+    public SMAChangeSet(String sourceDir, List<DiffEntry> diffs)
+    {
+        this(sourceDir);
+
+        for (DiffEntry diff : diffs)
+        {
+            add(diff);
+        }
+
+        fold();
+    }
+
+    /**
+     * Sorts a single DiffEntry into the index.
+     *
+     * @param diff
+     */
+    public void add(DiffEntry diff)
+    {
+        switch (diff.getChangeType())
+        {
+            case ADD:
+                index(additions, diff.getNewPath(), diff.getNewId().toObjectId());
+                break;
+            case DELETE:
+                index(deletions, diff.getOldPath(), diff.getOldId().toObjectId());
+                break;
+            case MODIFY:
+                index(modifications, diff.getNewPath(), diff.getNewId().toObjectId());
+                index(originals, diff.getOldPath(), diff.getOldId().toObjectId());
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Reduces the change set to the net changes between its two trees. Paths that were both deleted and added
+     * become modifications, and modifications whose blob id did not change, such as file mode changes, are dropped.
+     */
+    public void fold()
+    {
+        for (String path : new ArrayList<String>(additions.keySet()))
+        {
+            if (deletions.containsKey(path))
+            {
+                ObjectId oldId = deletions.remove(path);
+                ObjectId newId = additions.remove(path);
+
+                modifications.put(path, newId);
+                originals.put(path, oldId);
+            }
+        }
+
+        for (String path : new ArrayList<String>(modifications.keySet()))
+        {
+            if (modifications.get(path).equals(originals.get(path)))
+            {
+                modifications.remove(path);
+                originals.remove(path);
+            }
+        }
+    }
+
+    /**
+     * Returns the paths and blob ids of the items that were added.
+     *
+     * @return
+     */
+    public Map<String, ObjectId> getAdditions()
+    {
+        return Collections.unmodifiableMap(additions);
+    }
+
+    /**
+     * Returns the new paths and blob ids of the items that were modified.
+     *
+     * @return
+     */
+    public Map<String, ObjectId> getModifications()
+    {
+        return Collections.unmodifiableMap(modifications);
+    }
+
+    /**
+     * Returns the old paths and blob ids of the items that were modified.
+     *
+     * @return
+     */
+    public Map<String, ObjectId> getOriginals()
+    {
+        return Collections.unmodifiableMap(originals);
+    }
+
+    /**
+     * Returns the paths and blob ids of the items that were deleted.
+     *
+     * @return
+     */
+    public Map<String, ObjectId> getDeletions()
+    {
+        return Collections.unmodifiableMap(deletions);
+    }
+
+    /**
+     * Returns the blob id of a path on the new side of the change set, or null if the path did not change.
+     *
+     * @param path
+     * @return
+     */
+    public ObjectId findNew(String path)
+    {
+        ObjectId id = additions.get(path);
+
+        return id != null ? id : modifications.get(path);
+    }
+
+    /**
+     * Returns the blob id of a path on the old side of the change set, or null if the path did not change.
+     *
+     * @param path
+     * @return
+     */
+    public ObjectId findOld(String path)
+    {
+        ObjectId id = deletions.get(path);
+
+        return id != null ? id : originals.get(path);
+    }
+
+    /**
+     * Returns whether or not the change set adds or deletes any items, which requires a manifest update.
+     *
+     * @return
+     */
+    public boolean hasStructuralChanges()
+    {
+        return !additions.isEmpty() || !deletions.isEmpty();
+    }
+
+    /**
+     * Returns the total number of indexed paths.
+     *
+     * @return
+     */
+    public int size()
+    {
+        return additions.size() + modifications.size() + deletions.size();
+    }
+
+    /**
+     * Writes the index of this change set, one line per path.
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void writeTo(OutputStream out) throws IOException
+    {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+
+        write(writer, ADDITION, additions);
+        write(writer, MODIFICATION, modifications);
+        write(writer, ORIGINAL, originals);
+        write(writer, DELETION, deletions);
+
+        writer.flush();
+    }
+
+    /**
+     * Reads a change set that was written with writeTo.
+     *
+     * @param sourceDir
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    public static SMAChangeSet readFrom(String sourceDir, InputStream in) throws IOException
+    {
+        SMAChangeSet changeSet = new SMAChangeSet(sourceDir);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        String line;
+
+        while ((line = reader.readLine()) != null)
+        {
+            String[] entry = line.split(" ", 3);
+
+            if (entry.length != 3)
+            {
+                throw new IOException("Malformed change set entry '" + line + "'");
+            }
+
+            ObjectId id = ObjectId.fromString(entry[1]);
+
+            if (entry[0].equals(ADDITION))
+            {
+                changeSet.additions.put(entry[2], id);
+            }
+            else if (entry[0].equals(MODIFICATION))
+            {
+                changeSet.modifications.put(entry[2], id);
+            }
+            else if (entry[0].equals(ORIGINAL))
+            {
+                changeSet.originals.put(entry[2], id);
+            }
+            else if (entry[0].equals(DELETION))
+            {
+                changeSet.deletions.put(entry[2], id);
+            }
+            else
+            {
+                throw new IOException("Unknown change set entry '" + line + "'");
+            }
+        }
+
+        return changeSet;
+    }
+
+    /**
+     * Adds the path to the index if it is part of the source directory. -meta.xml files are skipped when their
+     * component is already indexed since both are packaged together.
+     *
+     * @param index
+     * @param path
+     * @param id
+     */
+    private void index(Map<String, ObjectId> index, String path, ObjectId id)
+    {
+        String item = SMAUtility.checkMeta(path);
+
+        if (!index.containsKey(item) && item.contains(sourceDir))
+        {
+            index.put(path, id);
+        }
+    }
+
+    private static void write(Writer writer, String type, Map<String, ObjectId> index) throws IOException
+    {
+        for (Map.Entry<String, ObjectId> entry : index.entrySet())
+        {
+            writer.write(type + " " + entry.getValue().name() + " " + entry.getKey() + "\n");
+        }
+    }
+}
@@ -0,0 +1,428 @@
+package org.jenkinsci.plugins.sma;
+
+import com.sforce.soap.metadata.TestLevel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Deploys the chunks of a deployment one after the other, stopping at the first chunk that fails.
+ *
+ * The package of the next chunk is zipped while the current chunk is being deployed. A chunk whose zip is over the
+ * Metadata API size limit is split in two and zipped again. Packages are written to files in the package directory
+ * and deleted once they have been deployed. Destructive changes are deployed with the last chunk,
+ * once everything that may have referenced the deleted components has been deployed.
+ *
+ * A validation is refused if it needs more than one package, since each package would be validated without the
+ * components of the ones before it. With RunSpecifiedTests, a deployment is refused if a package contains Apex but
+ * none of the specified tests have been deployed by the time it is sent, since it would be deployed without tests.
+ *
+ */
+public class SMAChunkedDeployer
+{
+    // Seconds to wait for a package that is being zipped when the deployment ends
+    private static final long BUILDER_SHUTDOWN_TIMEOUT = 60;
+
+    private final SMAConnection connection;
+    private final SMAGit git;
+    private final String apiVersion;
+    private final File packageDir;
+    private final PrintStream log;
+    private final List<File> packageFiles = new ArrayList<File>();
+    private final StringBuilder results = new StringBuilder();
+    private boolean closed;
+    private long maxZippedSize = SMAChunker.MAX_ZIPPED_SIZE;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private int zipThreads = 1;
+    private SMAZipStats zipStats = new SMAZipStats();
+
+    /**
+     * Creates an SMAChunkedDeployer
+     *
+     * @param connection
+     * @param git
+     * @param apiVersion
+     * @param packageDir The directory the packages are written to.
+     * @param log        The stream progress is reported to.
+     */
+    public SMAChunkedDeployer(SMAConnection connection,
+                              SMAGit git,
+                              String apiVersion,
+                              File packageDir,
+                              PrintStream log)
+    {
+        this.connection = connection;
+        this.git = git;
+        this.apiVersion = apiVersion;
+        this.packageDir = packageDir;
+        this.log = log;
+    }
+
+    /**
+     * Deploys the chunks in order
+     *
+     * @param chunks
+     * @param destructiveChanges
+     * @param testLevel
+     * @param specifiedTests
+     * @param validateOnly
+     * @return Whether every chunk was deployed. Always false for a deployment that is refused.
+     * @throws Exception
+     */
+    public boolean deploy(final List<SMAChunker.Chunk> chunks,
+                          final SMAPackage destructiveChanges,
+                          TestLevel testLevel,
+                          String[] specifiedTests,
+                          boolean validateOnly) throws Exception
+    {
+        if (validateOnly && chunks.size() > 1)
+        {
+            refuseValidation(chunks.size() + " chunks");
+            return false;
+        }
+
+        // Specified tests can only run once their classes have been deployed
+        Set<String> undeployedApex = new HashSet<String>();
+        for (SMAChunker.Chunk chunk : chunks)
+        {
+            undeployedApex.addAll(SMAMetadata.getApexClasses(chunk.getMembers()));
+        }
+
+        // Check the chunks before anything is deployed, so a deployment that can't be tested isn't left half done
+        Set<String> pendingApex = new HashSet<String>(undeployedApex);
+        for (int i = 0; i < chunks.size(); i++)
+        {
+            List<SMAMetadata> members = chunks.get(i).getMembers();
+            pendingApex.removeAll(SMAMetadata.getApexClasses(members));
+
+            if (isUntested(members, testLevel, specifiedTests, pendingApex))
+            {
+                refuseUntested("chunk " + (i + 1) + " of " + chunks.size());
+                return false;
+            }
+        }
+
+        ExecutorService builder = Executors.newSingleThreadExecutor(new SMADaemonThreadFactory("SMA chunk builder"));
+
+        try
+        {
+            Future<List<Built>> next = builder.submit(build(chunks.get(0), chunks.size() == 1 ? destructiveChanges :
+                    null));
+
+            for (int i = 0; i < chunks.size(); i++)
+            {
+                List<Built> packages = next.get();
+
+                if (i + 1 < chunks.size())
+                {
+                    next = builder.submit(build(chunks.get(i + 1), i + 2 == chunks.size() ? destructiveChanges :
+                            null));
+                }
+
+                if (validateOnly && packages.size() > 1)
+                {
+                    refuseValidation(packages.size() + " packages to stay within the zip size limit");
+                    return false;
+                }
+
+                for (int part = 0; part < packages.size(); part++)
+                {
+                    Built built = packages.get(part);
+                    undeployedApex.removeAll(SMAMetadata.getApexClasses(built.chunk.getMembers()));
+                    String label = "";
+
+                    if (chunks.size() > 1 || packages.size() > 1)
+                    {
+                        label = "chunk " + (i + 1) + " of " + chunks.size() +
+                                (packages.size() > 1 ? ", part " + (part + 1) + " of " + packages.size() : "");
+                    }
+
+                    // Splitting a chunk can still separate its Apex from the tests that cover it
+                    if (isUntested(built.chunk.getMembers(), testLevel, specifiedTests, undeployedApex))
+                    {
+                        refuseUntested(label);
+                        return false;
+                    }
+
+                    if (!label.isEmpty())
+                    {
+                        log.println("[SMA] Deploying " + label + ": " + built.chunk.getMembers().size() +
+                                " components, " + built.chunk.getFileCount() + " files, " +
+                                built.zip.length() / 1024 + " KB");
+                    }
+
+                    boolean success = connection.deployToServer(
+                            built.zip,
+                            testLevel,
+                            getDeployedTests(specifiedTests, undeployedApex),
+                            validateOnly,
+                            built.manifest.containsApex()
+                    );
+                    delete(built.zip);
+                    addResults(label, success, testLevel);
+
+                    if (!success)
+                    {
+                        if (chunks.size() > 1 || packages.size() > 1)
+                        {
+                            log.println("[SMA] Chunk " + (i + 1) + " failed, the remaining chunks were not deployed");
+                        }
+
+                        return false;
+                    }
+                }
+            }
+
+            return true;
+        }
+        finally
+        {
+            // Stop the builder before sweeping, so it can't leave a package behind after the sweep
+            builder.shutdownNow();
+
+            if (!builder.awaitTermination(BUILDER_SHUTDOWN_TIMEOUT, TimeUnit.SECONDS))
+            {
+                log.println("[SMA] The package builder did not stop, packages may be left in " + packageDir);
+            }
+
+            synchronized (packageFiles)
+            {
+                closed = true;
+
+                for (File zip : new ArrayList<File>(packageFiles))
+                {
+                    delete(zip);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the results of the deployed chunks for printing to the Jenkins console: the code coverage of the
+     * chunks that succeeded and the failures of the chunk that failed, each under the name of its chunk when the
+     * deployment was split.
+     *
+     * @return
+     */
+    public String getResults()
+    {
+        return results.toString();
+    }
+
+    /**
+     * Sets the largest zip in bytes that is deployed without splitting its chunk.
+     *
+     * @param maxZippedSize
+     */
+    public void setMaxZippedSize(long maxZippedSize)
+    {
+        this.maxZippedSize = maxZippedSize;
+    }
+
+    /**
+     * Sets the compression of the packages
+     *
+     * @param compressionLevel The deflate compression level, from 0 to 9, or -1 for the default level.
+     * @param zipThreads       The number of threads that compress a package.
+     * @param zipStats         Records how the entries of the packages were compressed.
+     */
+    public void setCompression(int compressionLevel, int zipThreads, SMAZipStats zipStats)
+    {
+        this.compressionLevel = compressionLevel;
+        this.zipThreads = zipThreads;
+        this.zipStats = zipStats;
+    }
+
+    /**
+     * Returns a task that zips the package of a chunk, splitting the chunk until every zip is within the size limit.
+     *
+     * @param chunk
+     * @param destructiveChanges The destructive changes to deploy with the chunk, or null.
+     * @return
+     */
+    private Callable<List<Built>> build(final SMAChunker.Chunk chunk, final SMAPackage destructiveChanges)
+    {
+        return new Callable<List<Built>>()
+        {
+            public List<Built> call() throws Exception
+            {
+                return zip(chunk, destructiveChanges);
+            }
+        };
+    }
+
+    private List<Built> zip(SMAChunker.Chunk chunk, SMAPackage destructiveChanges) throws Exception
+    {
+        SMAPackage manifest = new SMAPackage(chunk.getMembers(), false, apiVersion);
+        SMAPackage destructive = destructiveChanges != null ? destructiveChanges :
+                new SMAPackage(new ArrayList<SMAMetadata>(), true, apiVersion);
+        File zip = newPackageFile();
+
+        try
+        {
+            SMAUtility.zipPackage(chunk.getData(), git, manifest, destructive, zip, compressionLevel, zipThreads,
+                    zipStats);
+        }
+        catch (Exception e)
+        {
+            delete(zip);
+            throw e;
+        }
+
+        if (zip.length() > maxZippedSize && chunk.getMembers().size() > 1)
+        {
+            delete(zip);
+
+            List<SMAChunker.Chunk> halves = chunk.split();
+            List<Built> built = new ArrayList<Built>(zip(halves.get(0), null));
+            built.addAll(zip(halves.get(1), destructiveChanges));
+
+            return built;
+        }
+
+        return Collections.singletonList(new Built(chunk, manifest, zip));
+    }
+
+    private void addResults(String label, boolean success, TestLevel testLevel)
+    {
+        if (!label.isEmpty())
+        {
+            results.append("[SMA] Results of ").append(label).append("\n");
+        }
+
+        if (success)
+        {
+            if (!testLevel.equals(TestLevel.NoTestRun))
+            {
+                results.append(connection.getCodeCoverage());
+            }
+        }
+        else
+        {
+            results.append(connection.getComponentFailures());
+
+            if (!testLevel.equals(TestLevel.NoTestRun))
+            {
+                results.append(connection.getTestFailures());
+                results.append(connection.getCodeCoverageWarnings());
+            }
+        }
+    }
+
+    private void refuseValidation(String packages)
+    {
+        results.append("[SMA] The deployment needs ").append(packages).append(" and can't be validated, ")
+                .append("because each package would be validated without the components of the ones before it. ")
+                .append("Deploy without validation, or validate a smaller change.\n");
+    }
+
+    private void refuseUntested(String label)
+    {
+        results.append("[SMA] ").append(label.isEmpty() ? "The package" : "The package of " + label)
+                .append(" contains Apex, but none of the specified tests have been deployed by then, so it ")
+                .append("would be deployed without running tests. Nothing more was deployed. Deploy with another ")
+                .append("test level, or raise SMA_CHUNK_MAX_FILES or SMA_CHUNK_MAX_BYTES so the tests are ")
+                .append("deployed with the classes they cover.\n");
+    }
+
+    /**
+     * Creates a package file in the package directory, unless the deployment is over and the files were swept.
+     *
+     * @return
+     * @throws IOException
+     */
+    private File newPackageFile() throws IOException
+    {
+        synchronized (packageFiles)
+        {
+            if (closed)
+            {
+                throw new IOException("[SMA] The deployment is over, no more packages are built");
+            }
+
+            File zip = File.createTempFile("package", ".zip", packageDir);
+            packageFiles.add(zip);
+
+            return zip;
+        }
+    }
+
+    private void delete(File zip)
+    {
+        zip.delete();
+
+        synchronized (packageFiles)
+        {
+            packageFiles.remove(zip);
+        }
+    }
+
+    /**
+     * Returns whether the members contain Apex that would be deployed without tests, because the specified tests
+     * all belong to classes that are still waiting to be deployed.
+     *
+     * @param members
+     * @param testLevel
+     * @param specifiedTests
+     * @param undeployedApex
+     * @return
+     * @throws Exception
+     */
+    private boolean isUntested(List<SMAMetadata> members,
+                               TestLevel testLevel,
+                               String[] specifiedTests,
+                               Set<String> undeployedApex) throws Exception
+    {
+        return testLevel.equals(TestLevel.RunSpecifiedTests) &&
+                specifiedTests != null && specifiedTests.length > 0 &&
+                getDeployedTests(specifiedTests, undeployedApex).length == 0 &&
+                new SMAPackage(members, false, apiVersion).containsApex();
+    }
+
+    /**
+     * Returns the specified tests that don't belong to a class that is still waiting to be deployed
+     *
+     * @param specifiedTests
+     * @param undeployedApex
+     * @return
+     */
+    private static String[] getDeployedTests(String[] specifiedTests, Set<String> undeployedApex)
+    {
+        if (specifiedTests == null)
+        {
+            return null;
+        }
+
+        List<String> tests = new ArrayList<String>(Arrays.asList(specifiedTests));
+        tests.removeAll(undeployedApex);
+
+        return tests.toArray(new String[tests.size()]);
+    }
+
+    private static class Built
+    {
+        private final SMAChunker.Chunk chunk;
+        private final SMAPackage manifest;
+        private final File zip;
+
+        Built(SMAChunker.Chunk chunk, SMAPackage manifest, File zip)
+        {
+            this.chunk = chunk;
+            this.manifest = manifest;
+            this.zip = zip;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package org.jenkinsci.plugins.sma;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Splits a deployment into chunks that stay within the Metadata API limits on the number of files and the size of a
+ * package. Components are ordered so that the types others depend on are deployed first, and the files of a
+ * component are never split across chunks.
+ *
+ */
+public class SMAChunker
+{
+    // Metadata API limits for a single deploy call
+    public static final int MAX_FILES = 10000;
+    public static final long MAX_UNZIPPED_SIZE = 400L * 1024 * 1024;
+    public static final long MAX_ZIPPED_SIZE = 39L * 1024 * 1024;
+
+    // Types are deployed in this order. Types that aren't listed are deployed after the code they may reference
+    // and before the layouts, applications and security settings that reference them.
+    private static final List<String> TYPE_ORDER = Arrays.asList(
+            "CustomLabels",
+            "StaticResource",
+            "Document",
+            "CustomObject",
+            "RecordType",
+            "ApexClass",
+            "ApexTrigger",
+            "ApexComponent",
+            "ApexPage",
+            "AuraDefinitionBundle",
+            null,
+            "Layout",
+            "Workflow",
+            "ApprovalProcess",
+            "Flow",
+            "EmailTemplate",
+            "Report",
+            "Dashboard",
+            "CustomTab",
+            "CustomApplication",
+            "PermissionSet",
+            "Profile"
+    );
+    private static final int UNLISTED_TYPE = TYPE_ORDER.indexOf(null);
+
+    private final int maxFiles;
+    private final long maxSize;
+    private final List<Chunk> components = new ArrayList<Chunk>();
+
+    /**
+     * Creates an SMAChunker
+     *
+     * @param maxFiles The maximum number of files in a chunk.
+     * @param maxSize  The maximum uncompressed size in bytes of a chunk.
+     */
+    public SMAChunker(int maxFiles, long maxSize)
+    {
+        this.maxFiles = maxFiles;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Adds a component to the deployment
+     *
+     * @param member The component.
+     * @param files  The zip entry names mapped to the blob ids of the files of the component.
+     * @param size   The uncompressed size of the files in bytes.
+     */
+    public void add(SMAMetadata member, Map<String, ObjectId> files, long size)
+    {
+        Chunk component = new Chunk();
+        component.add(member, files, size);
+        components.add(component);
+    }
+
+    /**
+     * Returns the chunks of the deployment in the order they should be deployed. A deployment that is within the
+     * limits is returned as a single chunk.
+     *
+     * @return
+     */
+    public List<Chunk> getChunks()
+    {
+        List<Chunk> ordered = new ArrayList<Chunk>(components);
+        Collections.sort(ordered, new Comparator<Chunk>()
+        {
+            public int compare(Chunk a, Chunk b)
+            {
+                return compareDependencies(a.getMembers().get(0), b.getMembers().get(0));
+            }
+        });
+
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        Chunk current = new Chunk();
+
+        for (Chunk component : ordered)
+        {
+            if (!current.getMembers().isEmpty() &&
+                    (current.getFileCount() + component.getFileCount() > maxFiles ||
+                            current.getSize() + component.getSize() > maxSize))
+            {
+                chunks.add(current);
+                current = new Chunk();
+            }
+
+            current.addAll(component);
+        }
+
+        chunks.add(current);
+
+        return chunks;
+    }
+
+    /**
+     * Orders components by the position of their type in the dependency order, with folders ahead of the
+     * components filed in them.
+     *
+     * @param a
+     * @param b
+     * @return
+     */
+    static int compareDependencies(SMAMetadata a, SMAMetadata b)
+    {
+        int compare = rank(a.getMetadataType()) - rank(b.getMetadataType());
+
+        if (compare == 0)
+        {
+            compare = a.getMetadataType().compareTo(b.getMetadataType());
+        }
+
+        if (compare == 0 && a.getKind() != b.getKind())
+        {
+            compare = a.getKind() == SMAMetadata.Kind.FOLDER ? -1 : b.getKind() == SMAMetadata.Kind.FOLDER ? 1 : 0;
+        }
+
+        return compare == 0 ? a.getMember().compareTo(b.getMember()) : compare;
+    }
+
+    private static int rank(String metadataType)
+    {
+        int rank = TYPE_ORDER.indexOf(metadataType);
+
+        return rank < 0 ? UNLISTED_TYPE : rank;
+    }
+
+    /**
+     * A part of a deployment that is deployed as one package.
+     */
+    public static class Chunk
+    {
+        private final List<SMAMetadata> members = new ArrayList<SMAMetadata>();
+        private final List<Map<String, ObjectId>> files = new ArrayList<Map<String, ObjectId>>();
+        private final List<Long> sizes = new ArrayList<Long>();
+        private final Map<String, ObjectId> data = new TreeMap<String, ObjectId>();
+        private long size;
+
+        void add(SMAMetadata member, Map<String, ObjectId> memberFiles, long memberSize)
+        {
+            members.add(member);
+            files.add(memberFiles);
+            sizes.add(memberSize);
+            data.putAll(memberFiles);
+            size += memberSize;
+        }
+
+        void addAll(Chunk chunk)
+        {
+            for (int i = 0; i < chunk.members.size(); i++)
+            {
+                add(chunk.members.get(i), chunk.files.get(i), chunk.sizes.get(i));
+            }
+        }
+
+        /**
+         * Splits the chunk into two halves, keeping the dependency order.
+         *
+         * @return
+         */
+        public List<Chunk> split()
+        {
+            Chunk first = new Chunk();
+            Chunk second = new Chunk();
+
+            for (int i = 0; i < members.size(); i++)
+            {
+                (i < members.size() / 2 ? first : second).add(members.get(i), files.get(i), sizes.get(i));
+            }
+
+            return Arrays.asList(first, second);
+        }
+
+        public List<SMAMetadata> getMembers()
+        {
+            return members;
+        }
+
+        /**
+         * Returns the zip entry names mapped to the blob ids of the files in this chunk
+         *
+         * @return
+         */
+        public Map<String, ObjectId> getData()
+        {
+            return data;
+        }
+
+        public int getFileCount()
+        {
+            return data.size();
+        }
+
+        public long getSize()
+        {
+            return size;
+        }
+    }
+}
@@ -7,6 +7,7 @@ import com.sforce.soap.partner.PartnerConnection;
 import com.sforce.ws.ConnectorConfig;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.text.DecimalFormat;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -57,10 +58,42 @@ public class SMAConnection
                          String proxyUser,
                          String proxyPass,
                          Integer proxyPort) throws Exception
+    {
+        this(username, password, securityToken, server, pollWaitString, maxPollString, proxyServer, proxyUser,
+                proxyPass, proxyPort, SMAMetadataTypes.getAPIVersion());
+    }
+
+    /**
+     * Constructor that sets up the connection to a Salesforce organization using the given Metadata API version
+     *
+     * @param username
+     * @param password
+     * @param securityToken
+     * @param server
+     * @param pollWaitString
+     * @param maxPollString
+     * @param proxyServer
+     * @param proxyUser
+     * @param proxyPort
+     * @param proxyPass
+     * @param apiVersion
+     * @throws Exception
+     */
+    public SMAConnection(String username,
+                         String password,
+                         String securityToken,
+                         String server,
+                         String pollWaitString,
+                         String maxPollString,
+                         String proxyServer,
+                         String proxyUser,
+                         String proxyPass,
+                         Integer proxyPort,
+                         String apiVersion) throws Exception
     {
         System.setProperty("https.protocols", "TLSv1,TLSv1.1,TLSv1.2");
 
-        API_VERSION = Double.valueOf(SMAMetadataTypes.getAPIVersion());
+        API_VERSION = Double.valueOf(apiVersion);
         this.pollWaitString = pollWaitString;
         this.maxPollString = maxPollString;
 
@@ -113,6 +146,36 @@ public class SMAConnection
                                   String[] specifiedTests,
                                   boolean validateOnly,
                                   boolean containsApex) throws Exception
+    {
+        return deployToServer(bytes.toByteArray(), testLevel, specifiedTests, validateOnly, containsApex);
+    }
+
+    /**
+     * Sets configuration and performs the deployment of a zipped package file to a Salesforce organization. The
+     * file is read once, straight into the array that is sent to the Metadata API.
+     *
+     * @param zipFile
+     * @param testLevel
+     * @param specifiedTests
+     * @param validateOnly
+     * @param containsApex
+     * @return
+     * @throws Exception
+     */
+    public boolean deployToServer(File zipFile,
+                                  TestLevel testLevel,
+                                  String[] specifiedTests,
+                                  boolean validateOnly,
+                                  boolean containsApex) throws Exception
+    {
+        return deployToServer(SMAUtility.readZip(zipFile), testLevel, specifiedTests, validateOnly, containsApex);
+    }
+
+    private boolean deployToServer(byte[] zipBytes,
+                                   TestLevel testLevel,
+                                   String[] specifiedTests,
+                                   boolean validateOnly,
+                                   boolean containsApex) throws Exception
     {
         DeployOptions deployOptions = new DeployOptions();
         deployOptions.setPerformRetrieve(false);
@@ -139,7 +202,7 @@ public class SMAConnection
             deployOptions.setTestLevel(testLevel);
         }
 
-        AsyncResult asyncResult = metadataConnection.deploy(bytes.toByteArray(), deployOptions);
+        AsyncResult asyncResult = metadataConnection.deploy(zipBytes, deployOptions);
         String asyncResultId = asyncResult.getId();
 
         int poll = 0;
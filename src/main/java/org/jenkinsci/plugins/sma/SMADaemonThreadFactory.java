@@ -0,0 +1,38 @@
+package org.jenkinsci.plugins.sma;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the daemon threads of the plugin's worker pools, so a pool that is left running never keeps Jenkins from
+ * shutting down. Threads are named after the pool and numbered in the order they were created.
+ *
+ */
+public class SMADaemonThreadFactory implements ThreadFactory
+{
+    private final String name;
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * Constructor for SMADaemonThreadFactory
+     *
+     * @param name
+     */
+    public SMADaemonThreadFactory(String name)
+    {
+        this.name = name;
+    }
+
+    /**
+     * Creates a numbered daemon thread
+     *
+     * @param r
+     * @return thread
+     */
+    public Thread newThread(Runnable r)
+    {
+        Thread thread = new Thread(r, name + " " + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
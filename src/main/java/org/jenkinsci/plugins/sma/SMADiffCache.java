@@ -0,0 +1,195 @@
+package org.jenkinsci.plugins.sma;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * On-disk cache of classified change sets, keyed by the ids of the old and new root trees and a hash of the
+ * options they were classified with, so the same trees classified with different settings are cached side by side.
+ * Entries are evicted least recently used first once the cache grows past its size limit.
+ *
+ */
+public class SMADiffCache
+{
+    private static final Logger LOG = Logger.getLogger(SMADiffCache.class.getName());
+
+    private static final String FORMAT = "sma-diff-cache 2";
+    private static final String SUFFIX = ".diff";
+
+    private final File cacheDir;
+    private final long maxSize;
+
+    /**
+     * Creates an SMADiffCache
+     *
+     * @param cacheDir The directory holding the cached change sets.
+     * @param maxSize  The maximum total size of the cache in bytes.
+     */
+    public SMADiffCache(File cacheDir, long maxSize)
+    {
+        this.cacheDir = cacheDir;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the cached change set for the tree pair, or null if it has not been cached with the same options.
+     *
+     * @param oldTree
+     * @param newTree
+     * @param sourceDir
+     * @param options  Description of the settings that affect classification of the diff.
+     * @return
+     */
+    public SMAChangeSet get(ObjectId oldTree, ObjectId newTree, String sourceDir, String options)
+    {
+        File entry = getEntry(oldTree, newTree, options);
+
+        if (!entry.isFile())
+        {
+            return null;
+        }
+
+        try
+        {
+            InputStream in = new BufferedInputStream(new FileInputStream(entry));
+
+            try
+            {
+                if (!readHeader(in).equals(FORMAT + " " + options))
+                {
+                    return null;
+                }
+
+                SMAChangeSet changeSet = SMAChangeSet.readFrom(sourceDir, in);
+                entry.setLastModified(System.currentTimeMillis());
+
+                return changeSet;
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (Exception e)
+        {
+            LOG.log(Level.WARNING, "Ignoring unreadable diff cache entry " + entry, e);
+            entry.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Stores the change set for the tree pair and evicts old entries if the cache is over its size limit.
+     *
+     * @param oldTree
+     * @param newTree
+     * @param options
+     * @param changeSet
+     * @throws IOException
+     */
+    public void put(ObjectId oldTree, ObjectId newTree, String options, SMAChangeSet changeSet) throws IOException
+    {
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs())
+        {
+            throw new IOException("Could not create diff cache directory " + cacheDir);
+        }
+
+        File entry = getEntry(oldTree, newTree, options);
+        File tmp = File.createTempFile(entry.getName(), ".tmp", cacheDir);
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp));
+
+        try
+        {
+            out.write((FORMAT + " " + options + "\n").getBytes("UTF-8"));
+            changeSet.writeTo(out);
+        }
+        finally
+        {
+            out.close();
+        }
+
+        entry.delete();
+
+        if (!tmp.renameTo(entry))
+        {
+            tmp.delete();
+            throw new IOException("Could not write diff cache entry " + entry);
+        }
+
+        evict();
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache fits in its size limit.
+     */
+    private void evict()
+    {
+        File[] entries = cacheDir.listFiles(new FilenameFilter()
+        {
+            public boolean accept(File dir, String name)
+            {
+                return name.endsWith(SUFFIX);
+            }
+        });
+
+        if (entries == null)
+        {
+            return;
+        }
+
+        long size = 0;
+        for (File entry : entries)
+        {
+            size += entry.length();
+        }
+
+        Arrays.sort(entries, new Comparator<File>()
+        {
+            public int compare(File a, File b)
+            {
+                return Long.valueOf(a.lastModified()).compareTo(b.lastModified());
+            }
+        });
+
+        for (int i = 0; i < entries.length && size > maxSize; i++)
+        {
+            size -= entries[i].length();
+            entries[i].delete();
+        }
+    }
+
+    private File getEntry(ObjectId oldTree, ObjectId newTree, String options)
+    {
+        String optionsHash = new ObjectInserter.Formatter().idFor(Constants.OBJ_BLOB, Constants.encode(options))
+                .abbreviate(8).name();
+
+        return new File(cacheDir, oldTree.name() + "-" + newTree.name() + "-" + optionsHash + SUFFIX);
+    }
+
+    /**
+     * Reads the first line of an entry without buffering past it.
+     *
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    private static String readHeader(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        int b;
+
+        while ((b = in.read()) != -1 && b != '\n')
+        {
+            header.write(b);
+        }
+
+        return header.toString("UTF-8");
+    }
+}
@@ -1,22 +1,39 @@
 package org.jenkinsci.plugins.sma;
 
-import org.eclipse.jgit.api.DiffCommand;
+import org.apache.commons.io.FileUtils;
 import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEditor;
+import org.eclipse.jgit.dircache.DirCacheEntry;
 import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.diff.DiffFormatter;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
 import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevTree;
 import org.eclipse.jgit.revwalk.RevWalk;
-import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
-import org.eclipse.jgit.treewalk.CanonicalTreeParser;
+import org.eclipse.jgit.revwalk.filter.RevFilter;
 import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.PathFilter;
+import org.eclipse.jgit.treewalk.filter.PathSuffixFilter;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.eclipse.jgit.util.io.DisabledOutputStream;
 
 import java.io.*;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -28,11 +45,17 @@ public class SMAGit
     public enum Mode { STD, INI, PRB }
 
     private final String SOURCEDIR = "src/";
+    static final long DIFF_CACHE_SIZE = 8 * 1024 * 1024;
 
     private Git git;
     private Repository repository;
-    private List<DiffEntry> diffs;
+    private SMAChangeSet changeSet;
+    private SortedMap<String, ObjectId> treeIndex;
     private String prevCommit, curCommit;
+    private String workspace;
+    private int blobLoaderThreads = 1;
+    private File diffCacheDir;
+    private SMADiffCache diffCache;
 
     private static final Logger LOG = Logger.getLogger(SMAGit.class.getName());
 
@@ -50,200 +73,347 @@ public class SMAGit
                   String diffAgainst,
                   Mode smaMode) throws Exception
     {
+        this.workspace = pathToWorkspace;
         String pathToRepo = pathToWorkspace + "/.git";
         File repoDir = new File(pathToRepo);
-        FileRepositoryBuilder builder = new FileRepositoryBuilder();
-        repository = builder.setGitDir(repoDir).readEnvironment().build();
+        repository = SMARepositoryCache.open(repoDir);
         git = new Git(repository);
         this.curCommit = curCommit;
+        diffCacheDir = new File(pathToWorkspace, "sma/diffcache");
+        diffCache = new SMADiffCache(diffCacheDir, DIFF_CACHE_SIZE);
 
-        if (smaMode == Mode.PRB)
+        try
         {
-            ObjectId branchId = repository.resolve("refs/remotes/origin/" + diffAgainst);
-            RevCommit targetCommit = new RevWalk(repository).parseCommit(branchId);
+            if (smaMode == Mode.PRB)
+            {
+                // Only diff against the point where the pull request branched off of the target
+                ObjectId headId = repository.resolve(curCommit);
+                ObjectId branchId = repository.resolve("refs/remotes/origin/" + diffAgainst);
 
-            this.prevCommit = targetCommit.getName();
-        }
-        else if (smaMode == Mode.STD)
-        {
-            this.prevCommit = diffAgainst;
-        }
+                if (headId == null)
+                {
+                    throw new IOException("Could not resolve the pull request commit " + curCommit);
+                }
 
-        if (smaMode != Mode.INI)
+                if (branchId == null)
+                {
+                    throw new IOException("Could not resolve the pull request target branch " + diffAgainst +
+                            " (refs/remotes/origin/" + diffAgainst + ")");
+                }
+
+                this.prevCommit = getMergeBase(headId, branchId).getName();
+            }
+            else if (smaMode == Mode.STD)
+            {
+                this.prevCommit = diffAgainst;
+            }
+        }
+        catch (Exception e)
         {
-            getDiffs();
+            close();
+            throw e;
         }
     }
 
     /**
      * Returns all of the items that were added in the current commit.
      *
-     * @return The ArrayList containing all of the additions in the current commit.
-     * @throws IOException
+     * @return The Map containing the paths and blob ids of all of the additions in the current commit.
+     * @throws Exception
      */
-    public Map<String, byte[]> getNewMetadata() throws Exception
+    public Map<String, ObjectId> getNewMetadata() throws Exception
     {
-        Map<String, byte[]> additions = new HashMap<String, byte[]>();
+        return getChangeSet().getAdditions();
+    }
 
-        for (DiffEntry diff : diffs)
+    /**
+     * Returns all of the items that were deleted in the current commit.
+     *
+     * @return The Map containing the paths and blob ids of all of the items that were deleted in the current commit.
+     * @throws Exception
+     */
+    public Map<String, ObjectId> getDeletedMetadata() throws Exception
+    {
+        return getChangeSet().getDeletions();
+    }
+
+    /**
+     * Returns all of the updated changes in the current commit.
+     *
+     * @return The Map containing the paths and blob ids of the items that were modified (new paths).
+     * @throws Exception
+     */
+    public Map<String, ObjectId> getUpdatedMetadata() throws Exception
+    {
+        return getChangeSet().getModifications();
+    }
+
+    /**
+     * Returns all of the modified (old paths) changes in the current commit.
+     *
+     * @return The Map containing the paths and blob ids of the items that were modified (old paths).
+     * @throws Exception
+     */
+    public Map<String, ObjectId> getOriginalMetadata() throws Exception
+    {
+        return getChangeSet().getOriginals();
+    }
+
+    /**
+     * Returns the indexed change set between the previous and current commits, computing it on first use. Change
+     * sets are cached in the workspace by the ids of the two root trees, so rebuilding the same pair of trees does
+     * not diff them again.
+     *
+     * @return SMAChangeSet
+     * @throws Exception
+     */
+    public SMAChangeSet getChangeSet() throws Exception
+    {
+        if (changeSet == null)
         {
-            if (diff.getChangeType().toString().equals("ADD"))
+            if (prevCommit == null)
+            {
+                changeSet = new SMAChangeSet(SOURCEDIR);
+            }
+            else
             {
-                String item = SMAUtility.checkMeta(diff.getNewPath());
-                if (!additions.containsKey(item) && item.contains(SOURCEDIR))
+                ObjectId oldTree = getTree(prevCommit);
+                ObjectId newTree = getTree(curCommit);
+                String options = "source=" + SOURCEDIR;
+
+                if (diffCache != null)
+                {
+                    changeSet = diffCache.get(oldTree, newTree, SOURCEDIR, options);
+                }
+
+                if (changeSet == null)
+                {
+                    changeSet = new SMAChangeSet(SOURCEDIR, getDiffs(oldTree, newTree));
+
+                    if (diffCache != null)
+                    {
+                        try
+                        {
+                            diffCache.put(oldTree, newTree, options, changeSet);
+                        }
+                        catch (IOException e)
+                        {
+                            LOG.log(Level.WARNING, "Could not cache the diff of " + prevCommit + ".." + curCommit, e);
+                        }
+                    }
+                }
+                else
                 {
-                    additions.put(diff.getNewPath(), getBlob(diff.getNewPath(), curCommit));
+                    LOG.fine("Reusing cached diff of " + prevCommit + ".." + curCommit);
                 }
             }
         }
 
-        return additions;
+        return changeSet;
     }
 
     /**
-     * Returns all of the items that were deleted in the current commit.
+     * Returns the blob information for the file at the specified path and commit
+     *
+     * @param repoItem
+     * @param commit
+     * @return
+     * @throws Exception
+     */
+    public byte[] getBlob(String repoItem, String commit) throws Exception
+    {
+        return getBlob(getBlobId(repoItem, commit));
+    }
+
+    /**
+     * Returns the blob id for the file at the specified path and commit
      *
-     * @return The ArrayList containing all of the items that were deleted in the current commit.
+     * @param repoItem
+     * @param commit
+     * @return
+     * @throws Exception
      */
-    public Map<String, byte[]> getDeletedMetadata() throws Exception
+    public ObjectId getBlobId(String repoItem, String commit) throws Exception
     {
-        Map<String, byte[]> deletions = new HashMap<String, byte[]>();
+        ObjectId blobId = null;
 
-        for (DiffEntry diff : diffs)
+        // Paths that are part of the change set or the listed tree are already indexed
+        if (commit.equals(curCommit))
         {
-            if (diff.getChangeType().toString().equals("DELETE"))
+            blobId = getChangeSet().findNew(repoItem);
+
+            if (blobId == null && treeIndex != null)
             {
-                String item = SMAUtility.checkMeta(diff.getOldPath());
-                if (!deletions.containsKey(item) && item.contains(SOURCEDIR))
-                {
-                    deletions.put(diff.getOldPath(), getBlob(diff.getOldPath(), prevCommit));
-                }
+                blobId = treeIndex.get(repoItem);
             }
         }
+        else if (commit.equals(prevCommit))
+        {
+            blobId = getChangeSet().findOld(repoItem);
+        }
 
-        return deletions;
+        if (blobId == null)
+        {
+            blobId = findBlobId(repoItem, commit);
+        }
+
+        return blobId;
     }
 
     /**
-     * Returns all of the updated changes in the current commit.
+     * Returns the contents of a blob
      *
-     * @return The ArrayList containing the items that were modified (new paths) and added to the repository.
-     * @throws IOException
+     * @param blobId
+     * @return
+     * @throws Exception
      */
-    public Map<String, byte[]> getUpdatedMetadata() throws Exception
+    public byte[] getBlob(ObjectId blobId) throws Exception
     {
-        Map<String, byte[]> modifiedMetadata = new HashMap<String, byte[]>();
+        ObjectReader reader = repository.newObjectReader();
 
-        for (DiffEntry diff : diffs)
+        try
         {
-            if (diff.getChangeType().toString().equals("MODIFY"))
-            {
-                String item = SMAUtility.checkMeta(diff.getNewPath());
-                if (!modifiedMetadata.containsKey(item) && item.contains(SOURCEDIR))
-                {
-                    modifiedMetadata.put(diff.getNewPath(), getBlob(diff.getNewPath(), curCommit));
-                }
-            }
+            return reader.open(blobId).getBytes();
+        }
+        finally
+        {
+            reader.release();
         }
-        return modifiedMetadata;
     }
 
     /**
-     * Returns all of the modified (old paths) changes in the current commit.
+     * Returns a new ObjectReader for streaming blobs out of the repository. The caller must release it.
      *
-     * @return ArrayList containing the items that were modified (old paths).
+     * @return
      */
-    public Map<String, byte[]> getOriginalMetadata() throws Exception
+    public ObjectReader newObjectReader()
     {
-        Map<String, byte[]> originalMetadata = new HashMap<String, byte[]>();
+        return repository.newObjectReader();
+    }
 
-        for (DiffEntry diff : diffs)
+    /**
+     * Replicates ls-tree for the current commit without loading any of the blobs.
+     *
+     * @return Map containing the full path and the blob id for all items in the repository.
+     * @throws Exception
+     */
+    public Map<String, ObjectId> listAllMetadata() throws Exception
+    {
+        if (treeIndex == null)
         {
-            if (diff.getChangeType().toString().equals("MODIFY"))
+            SortedMap<String, ObjectId> contents = new TreeMap<String, ObjectId>();
+            ObjectReader reader = repository.newObjectReader();
+            RevWalk revWalk = new RevWalk(reader);
+
+            try
             {
-                String item = SMAUtility.checkMeta(diff.getOldPath());
-                if (!originalMetadata.containsKey(item) && item.contains(SOURCEDIR))
+                RevTree tree = revWalk.parseCommit(repository.resolve(curCommit)).getTree();
+                TreeWalk treeWalk = new TreeWalk(reader);
+                treeWalk.addTree(tree);
+                treeWalk.setRecursive(true);
+
+                while (treeWalk.next())
                 {
-                    originalMetadata.put(diff.getOldPath(), getBlob(diff.getOldPath(), prevCommit));
+                    String member = treeWalk.getPathString();
+                    if (member.contains(SOURCEDIR))
+                    {
+                        contents.put(member, treeWalk.getObjectId(0));
+                    }
                 }
             }
+            finally
+            {
+                revWalk.release();
+                reader.release();
+            }
+
+            treeIndex = Collections.unmodifiableSortedMap(contents);
         }
 
-        return originalMetadata;
+        return treeIndex;
     }
 
     /**
-     * Returns the blob information for the file at the specified path and commit
+     * Returns the paths and blob ids of every file below a directory at the specified commit.
      *
-     * @param repoItem
+     * @param directory The path of the directory, ending with a slash.
      * @param commit
      * @return
      * @throws Exception
      */
-    public byte[] getBlob(String repoItem, String commit) throws Exception
+    public SortedMap<String, ObjectId> listFiles(String directory, String commit) throws Exception
     {
-        byte[] data;
-
-        String parentPath = repository.getDirectory().getParent();
+        if (commit == null)
+        {
+            return new TreeMap<String, ObjectId>();
+        }
 
-        ObjectId commitId = repository.resolve(commit);
+        if (commit.equals(curCommit))
+        {
+            // Paths sort in tree order, so the directory is a contiguous range of the index
+            listAllMetadata();
+            return new TreeMap<String, ObjectId>(treeIndex.subMap(directory, directory + Character.MAX_VALUE));
+        }
 
+        SortedMap<String, ObjectId> files = new TreeMap<String, ObjectId>();
         ObjectReader reader = repository.newObjectReader();
         RevWalk revWalk = new RevWalk(reader);
-        RevCommit revCommit = revWalk.parseCommit(commitId);
-        RevTree tree = revCommit.getTree();
-        TreeWalk treeWalk = TreeWalk.forPath(reader, repoItem, tree);
 
-        if (treeWalk != null)
+        try
         {
-            data = reader.open(treeWalk.getObjectId(0)).getBytes();
+            RevTree tree = revWalk.parseCommit(repository.resolve(commit)).getTree();
+            TreeWalk treeWalk = new TreeWalk(reader);
+            treeWalk.addTree(tree);
+            treeWalk.setRecursive(true);
+            treeWalk.setFilter(PathFilter.create(directory.substring(0, directory.length() - 1)));
+
+            while (treeWalk.next())
+            {
+                files.put(treeWalk.getPathString(), treeWalk.getObjectId(0));
+            }
         }
-        else
+        finally
         {
-            throw new IllegalStateException("Did not find expected file '" + repoItem + "'");
+            revWalk.release();
+            reader.release();
         }
 
-        reader.release();
-
-        return data;
+        return files;
     }
 
     /**
      * Replicates ls-tree for the current commit.
      *
+     * The tree is walked once and the blobs are loaded by an SMABlobLoader, spread across the configured number of
+     * blob loader threads.
+     *
      * @return Map containing the full path and the data for all items in the repository.
      * @throws IOException
      */
     public Map<String, byte[]> getAllMetadata() throws Exception
     {
-        Map<String, byte[]> contents = new HashMap<String, byte[]>();
-        ObjectReader reader = repository.newObjectReader();
-        ObjectId commitId = repository.resolve(curCommit);
-        RevWalk revWalk = new RevWalk(reader);
-        RevCommit commit = revWalk.parseCommit(commitId);
-        RevTree tree = commit.getTree();
-        TreeWalk treeWalk = new TreeWalk(reader);
-        treeWalk.addTree(tree);
-        treeWalk.setRecursive(false);
+        long start = System.currentTimeMillis();
+        long bytesRead = 0;
+
+        SMABlobLoader loader = new SMABlobLoader(this, blobLoaderThreads);
+        Map<String, byte[]> contents;
 
-        while (treeWalk.next())
+        try
         {
-            if (treeWalk.isSubtree())
-            {
-                treeWalk.enterSubtree();
-            }
-            else
-            {
-                String member = treeWalk.getPathString();
-                if (member.contains(SOURCEDIR))
-                {
-                    byte[] data = getBlob(member, curCommit);
-                    contents.put(member, data);
-                }
-            }
+            contents = loader.load(listAllMetadata());
+        }
+        finally
+        {
+            loader.shutdown();
+        }
+
+        for (byte[] data : contents.values())
+        {
+            bytesRead += data.length;
         }
 
-        reader.release();
+        LOG.info("Loaded " + contents.size() + " blobs (" + bytesRead + " bytes) from " + curCommit + " in " +
+                (System.currentTimeMillis() - start) + "ms using " + blobLoaderThreads + " thread(s)");
 
         return contents;
     }
@@ -251,53 +421,178 @@ public class SMAGit
     /**
      * Creates an updated package.xml file and commits it to the repository
      *
-     * @param workspace The workspace.
+     * The blob, tree and commit objects are written directly to the object database and HEAD is moved to the new
+     * commit. The working tree is never scanned or written; only the index entry of the manifest is updated so it
+     * matches the new HEAD.
+     *
      * @param userName  The user name of the committer.
      * @param userEmail The email of the committer.
      * @param manifest  The SMAPackage representation of a package manifest
      * @return A boolean value indicating whether an update was required or not.
      * @throws Exception
      */
-    public boolean updatePackageXML(String workspace,
-                                    String userName,
+    public boolean updatePackageXML(String userName,
                                     String userEmail,
                                     SMAPackage manifest) throws Exception
     {
-        File packageXml;
-
         // Only need to update the manifest if we have additions or deletions
-        if (!getNewMetadata().isEmpty() || !getDeletedMetadata().isEmpty())
+        if (!getChangeSet().hasStructuralChanges())
+        {
+            return false;
+        }
+
+        // Find the existing package.xml file in the repository
+        String packageLocation = findPackage();
+
+        if (packageLocation.isEmpty())
+        {
+            // We couldn't find one, so just create one.
+            packageLocation = "unpackaged/package.xml";
+        }
+
+        ObjectInserter inserter = repository.newObjectInserter();
+        ObjectReader reader = repository.newObjectReader();
+        RevWalk revWalk = new RevWalk(reader);
+
+        try
         {
-            // Fine the existing package.xml file in the repository
-            String packageLocation = SMAUtility.findPackage(new File(workspace));
+            final ObjectId manifestId = inserter.insert(Constants.OBJ_BLOB, manifest.getPackageBytes());
+            ObjectId headId = repository.resolve(Constants.HEAD);
+
+            // Build the new tree from the tree of HEAD with the manifest replaced
+            DirCache tree = DirCache.newInCore();
+            DirCacheBuilder treeBuilder = tree.builder();
 
-            if (!packageLocation.isEmpty())
+            if (headId != null)
             {
-                packageXml = new File(packageLocation);
+                treeBuilder.addTree(new byte[0], DirCacheEntry.STAGE_0, reader, revWalk.parseCommit(headId).getTree());
             }
-            else
+
+            treeBuilder.finish();
+
+            DirCacheEditor treeEditor = tree.editor();
+            treeEditor.add(new ManifestEdit(packageLocation, manifestId, null));
+            treeEditor.finish();
+
+            CommitBuilder commit = new CommitBuilder();
+            commit.setTreeId(tree.writeTree(inserter));
+            PersonIdent ident = new PersonIdent(userName, userEmail);
+            commit.setAuthor(ident);
+            commit.setCommitter(ident);
+            commit.setMessage("Jenkins updated package.xml");
+
+            if (headId != null)
             {
-                // We couldn't find one, so just create one.
-                packageXml = new File(workspace + "/unpackaged/package.xml");
-                packageXml.getParentFile().mkdirs();
-                packageXml.createNewFile();
+                commit.setParentId(headId);
             }
 
-            // Write the manifest to the location of the package.xml in the fs
-            FileOutputStream fos = new FileOutputStream(packageXml, false);
-            fos.write(manifest.getPackage().getBytes());
-            fos.close();
+            ObjectId commitId = inserter.insert(commit);
+            inserter.flush();
+
+            RefUpdate headUpdate = repository.updateRef(Constants.HEAD);
+            headUpdate.setNewObjectId(commitId);
+            headUpdate.setExpectedOldObjectId(headId != null ? headId : ObjectId.zeroId());
+            headUpdate.setRefLogMessage("commit: Jenkins updated package.xml", false);
+            RefUpdate.Result result = headUpdate.update(revWalk);
+
+            if (result != RefUpdate.Result.NEW && result != RefUpdate.Result.FAST_FORWARD)
+            {
+                throw new IOException("Could not update HEAD with the updated package.xml: " + result);
+            }
 
-            String path = packageXml.getPath();
+            // Write the manifest to the working tree so it matches what was committed
+            File packageXml = new File(repository.getWorkTree(), packageLocation);
+            packageXml.getParentFile().mkdirs();
+            FileUtils.writeByteArrayToFile(packageXml, manifest.getPackageBytes());
 
-            // Commit the updated package.xml file to the repository
-            git.add().addFilepattern(path).call();
-            git.commit().setCommitter(userName, userEmail).setMessage("Jenkins updated package.xml").call();
+            // Keep the index in line with HEAD and the working tree so the manifest doesn't show up as changed
+            DirCache index = repository.lockDirCache();
 
-            return true;
+            try
+            {
+                DirCacheEditor indexEditor = index.editor();
+                indexEditor.add(new ManifestEdit(packageLocation, manifestId, packageXml));
+                indexEditor.finish();
+                index.write();
+                index.commit();
+            }
+            finally
+            {
+                index.unlock();
+            }
+        }
+        finally
+        {
+            revWalk.release();
+            reader.release();
+            inserter.release();
+        }
+
+        return true;
+    }
+
+    /**
+     * Finds the existing package.xml in the source directory of the repository.
+     *
+     * The location is looked up in the git index, falling back to the tree of the current commit, and is cached in
+     * the workspace for the next build of the job. When several manifests exist, the one closest to the root of the
+     * repository wins, so the result never depends on directory listing order.
+     *
+     * @return The path of the package.xml relative to the repository, or an empty String if there is none.
+     * @throws Exception
+     */
+    public String findPackage() throws Exception
+    {
+        File cachedLocation = new File(workspace, "sma/package.location");
+
+        if (cachedLocation.isFile())
+        {
+            String location = FileUtils.readFileToString(cachedLocation, "UTF-8").trim();
+
+            if (repository.readDirCache().findEntry(location) >= 0)
+            {
+                return location;
+            }
+        }
+
+        String location = "";
+        DirCache index = repository.readDirCache();
+
+        for (int i = 0; i < index.getEntryCount(); i++)
+        {
+            location = closestPackage(location, index.getEntry(i).getPathString());
         }
 
-        return false;
+        if (location.isEmpty())
+        {
+            ObjectReader reader = repository.newObjectReader();
+            RevWalk revWalk = new RevWalk(reader);
+
+            try
+            {
+                TreeWalk treeWalk = new TreeWalk(reader);
+                treeWalk.addTree(revWalk.parseCommit(repository.resolve(curCommit)).getTree());
+                treeWalk.setRecursive(true);
+                treeWalk.setFilter(PathSuffixFilter.create("package.xml"));
+
+                while (treeWalk.next())
+                {
+                    location = closestPackage(location, treeWalk.getPathString());
+                }
+            }
+            finally
+            {
+                revWalk.release();
+                reader.release();
+            }
+        }
+
+        if (!location.isEmpty())
+        {
+            FileUtils.writeStringToFile(cachedLocation, location, "UTF-8");
+        }
+
+        return location;
     }
 
     public Git getRepo()
@@ -305,6 +600,44 @@ public class SMAGit
         return git;
     }
 
+    /**
+     * Releases this wrapper's reference to the shared repository. The repository stays open in the
+     * SMARepositoryCache for the next build until it has been idle for a while.
+     */
+    public void close()
+    {
+        if (repository != null)
+        {
+            SMARepositoryCache.release(repository);
+            repository = null;
+        }
+    }
+
+    /**
+     * Sets the number of threads used to load blobs in bulk.
+     *
+     * @param blobLoaderThreads
+     */
+    public void setBlobLoaderThreads(int blobLoaderThreads)
+    {
+        this.blobLoaderThreads = Math.max(1, blobLoaderThreads);
+    }
+
+    public int getBlobLoaderThreads()
+    {
+        return blobLoaderThreads;
+    }
+
+    /**
+     * Sets the maximum size in bytes of the diff cache in the workspace. A size of 0 disables the cache.
+     *
+     * @param diffCacheSize
+     */
+    public void setDiffCacheSize(long diffCacheSize)
+    {
+        diffCache = diffCacheSize > 0 ? new SMADiffCache(diffCacheDir, diffCacheSize) : null;
+    }
+
     public String getPrevCommit()
     {
         return prevCommit;
@@ -318,31 +651,223 @@ public class SMAGit
     /**
      * Returns the diff between two commits.
      *
+     * Only the names and status of the changed paths under the source directory are computed; no patch output is
+     * ever formatted. Renames are not detected: a renamed file is already an addition of its new path and a deletion
+     * of its old one, which deploys the component under its new name and destroys the old one.
+     *
+     * @param oldTree
+     * @param newTree
      * @return List that contains DiffEntry objects of the changes made between the previous and current commits.
      * @throws Exception
      */
-    private void getDiffs() throws Exception
+    private List<DiffEntry> getDiffs(ObjectId oldTree, ObjectId newTree) throws Exception
     {
-        OutputStream out = new ByteArrayOutputStream();
-        CanonicalTreeParser oldTree = getTree(prevCommit);
-        CanonicalTreeParser newTree = getTree(curCommit);
-        DiffCommand diff = git.diff().setOutputStream(out).setOldTree(oldTree).setNewTree(newTree);
-        diffs = diff.call();
+        DiffFormatter diffFormatter = new DiffFormatter(DisabledOutputStream.INSTANCE);
+
+        try
+        {
+            diffFormatter.setRepository(repository);
+            diffFormatter.setPathFilter(new SourceDirFilter(SOURCEDIR));
+
+            return diffFormatter.scan(oldTree, newTree);
+        }
+        finally
+        {
+            diffFormatter.release();
+        }
     }
 
     /**
-     * Returns the Canonical Tree Parser representation of a commit.
+     * Finds the blob id for the file at the specified path and commit.
+     *
+     * @param repoItem
+     * @param commit
+     * @return
+     * @throws Exception
+     */
+    private ObjectId findBlobId(String repoItem, String commit) throws Exception
+    {
+        ObjectReader reader = repository.newObjectReader();
+        RevWalk revWalk = new RevWalk(reader);
+
+        try
+        {
+            RevTree tree = revWalk.parseCommit(repository.resolve(commit)).getTree();
+            TreeWalk treeWalk = TreeWalk.forPath(reader, repoItem, tree);
+
+            if (treeWalk == null)
+            {
+                throw new IllegalStateException("Did not find expected file '" + repoItem + "'");
+            }
+
+            return treeWalk.getObjectId(0);
+        }
+        finally
+        {
+            revWalk.release();
+            reader.release();
+        }
+    }
+
+    /**
+     * Returns the merge base of two commits, reusing the result of earlier builds from the workspace.
+     *
+     * If the commits have no common ancestor the tip of the target is used, as it was before merge bases were
+     * computed.
+     *
+     * @param head   The head of the pull request.
+     * @param target The tip of the target branch.
+     * @return
+     * @throws Exception
+     */
+    private ObjectId getMergeBase(ObjectId head, ObjectId target) throws Exception
+    {
+        File mergeBaseDir = new File(workspace, "sma/mergebase");
+        File cached = new File(mergeBaseDir, head.name() + "-" + target.name());
+
+        if (cached.isFile())
+        {
+            String mergeBase = FileUtils.readFileToString(cached, "UTF-8").trim();
+
+            if (ObjectId.isId(mergeBase))
+            {
+                return ObjectId.fromString(mergeBase);
+            }
+        }
+
+        ObjectId mergeBase = null;
+        RevWalk revWalk = new RevWalk(repository);
+
+        try
+        {
+            revWalk.setRevFilter(RevFilter.MERGE_BASE);
+            revWalk.markStart(revWalk.parseCommit(head));
+            revWalk.markStart(revWalk.parseCommit(target));
+
+            RevCommit commit = revWalk.next();
+
+            if (commit != null)
+            {
+                mergeBase = commit.copy();
+            }
+        }
+        finally
+        {
+            revWalk.release();
+        }
+
+        if (mergeBase == null)
+        {
+            LOG.warning("No merge base of " + head.name() + " and " + target.name() +
+                    ", diffing against the target instead");
+            return target;
+        }
+
+        mergeBaseDir.mkdirs();
+        FileUtils.writeStringToFile(cached, mergeBase.name(), "UTF-8");
+
+        return mergeBase;
+    }
+
+    /**
+     * Returns whichever of the two paths is the package.xml closest to the root of the source directory.
+     *
+     * @param location The best location found so far, or an empty String.
+     * @param candidate
+     * @return
+     */
+    private String closestPackage(String location, String candidate)
+    {
+        if (!(candidate.equals("package.xml") || candidate.endsWith("/package.xml"))
+                || !candidate.contains(SOURCEDIR))
+        {
+            return location;
+        }
+
+        if (location.isEmpty() || depth(candidate) < depth(location)
+                || (depth(candidate) == depth(location) && candidate.compareTo(location) < 0))
+        {
+            return candidate;
+        }
+
+        return location;
+    }
+
+    private static int depth(String path)
+    {
+        return path.split("/").length;
+    }
+
+    /**
+     * Returns the id of the tree of a commit.
      *
      * @param commit Commit in the repository.
-     * @return CanonicalTreeParser representing the tree for the commit.
+     * @return ObjectId of the tree for the commit.
      * @throws IOException
      */
-    private CanonicalTreeParser getTree(String commit) throws IOException
+    private ObjectId getTree(String commit) throws IOException
     {
-        CanonicalTreeParser tree = new CanonicalTreeParser();
-        ObjectReader reader = repository.newObjectReader();
-        ObjectId head = repository.resolve(commit + "^{tree}");
-        tree.reset(reader, head);
-        return tree;
+        return repository.resolve(commit + "^{tree}");
+    }
+
+    /**
+     * DirCache edit that points the manifest path at a new blob, taking the stat data of the entry from the file
+     * written to the working tree when there is one.
+     */
+    private static class ManifestEdit extends DirCacheEditor.PathEdit
+    {
+        private final ObjectId manifestId;
+        private final File file;
+
+        ManifestEdit(String path, ObjectId manifestId, File file)
+        {
+            super(path);
+            this.manifestId = manifestId;
+            this.file = file;
+        }
+
+        @Override
+        public void apply(DirCacheEntry entry)
+        {
+            entry.setFileMode(FileMode.REGULAR_FILE);
+            entry.setObjectId(manifestId);
+
+            if (file != null)
+            {
+                entry.setLength(file.length());
+                entry.setLastModified(file.lastModified());
+            }
+        }
+    }
+
+    /**
+     * TreeFilter that only includes files with the source directory in their path.
+     */
+    private static class SourceDirFilter extends TreeFilter
+    {
+        private final String sourceDir;
+
+        SourceDirFilter(String sourceDir)
+        {
+            this.sourceDir = sourceDir;
+        }
+
+        @Override
+        public boolean include(TreeWalk walker)
+        {
+            return walker.isSubtree() || walker.getPathString().contains(sourceDir);
+        }
+
+        @Override
+        public boolean shouldBeRecursive()
+        {
+            return true;
+        }
+
+        @Override
+        public TreeFilter clone()
+        {
+            return this;
+        }
     }
 }
@@ -0,0 +1,185 @@
+package org.jenkinsci.plugins.sma;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Records the git blob id of every file that was successfully deployed to a Salesforce organization, so that later
+ * full deployments only need to send what differs from the org.
+ *
+ */
+public class SMALedger
+{
+    private static final Object LOCK = new Object();
+
+    private final File ledgerFile;
+    private Map<String, ObjectId> deployed;
+
+    /**
+     * Creates the SMALedger for an organization
+     *
+     * @param ledgerDir The directory holding the ledgers of all organizations.
+     * @param username  The user that deploys to the organization.
+     * @param server    The login server of the organization.
+     */
+    public SMALedger(File ledgerDir, String username, String server)
+    {
+        this.ledgerFile = new File(ledgerDir, getOrgKey(username, server) + ".ledger");
+    }
+
+    /**
+     * Returns the paths and blob ids of everything recorded as deployed to the organization.
+     *
+     * @return
+     * @throws IOException
+     */
+    public Map<String, ObjectId> getDeployed() throws IOException
+    {
+        if (deployed == null)
+        {
+            deployed = read();
+        }
+
+        return Collections.unmodifiableMap(deployed);
+    }
+
+    /**
+     * Returns the paths whose blob id differs from the one recorded for the organization.
+     *
+     * @param current The paths and blob ids of the files that would be deployed.
+     * @return
+     * @throws IOException
+     */
+    public Set<String> getChanged(Map<String, ObjectId> current) throws IOException
+    {
+        Set<String> changed = new TreeSet<String>();
+
+        for (Map.Entry<String, ObjectId> entry : current.entrySet())
+        {
+            if (!entry.getValue().equals(getDeployed().get(entry.getKey())))
+            {
+                changed.add(entry.getKey());
+            }
+        }
+
+        return changed;
+    }
+
+    /**
+     * Records a successful deployment. The ledger is re-read before it is updated so that deployments from other
+     * jobs to the same organization are kept.
+     *
+     * @param deployedFiles   The paths and blob ids of the files that were deployed.
+     * @param destroyedFiles  The paths of the files that were deleted from the organization.
+     * @throws IOException
+     */
+    public void record(Map<String, ObjectId> deployedFiles, Collection<String> destroyedFiles) throws IOException
+    {
+        synchronized (LOCK)
+        {
+            deployed = read();
+            deployed.putAll(deployedFiles);
+
+            for (String destroyed : destroyedFiles)
+            {
+                deployed.remove(destroyed);
+            }
+
+            write();
+        }
+    }
+
+    public File getLedgerFile()
+    {
+        return ledgerFile;
+    }
+
+    private Map<String, ObjectId> read() throws IOException
+    {
+        Map<String, ObjectId> entries = new TreeMap<String, ObjectId>();
+
+        if (!ledgerFile.isFile())
+        {
+            return entries;
+        }
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(ledgerFile), "UTF-8"));
+
+        try
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                String[] entry = line.split(" ", 2);
+
+                if (entry.length == 2 && ObjectId.isId(entry[0]))
+                {
+                    entries.put(entry[1], ObjectId.fromString(entry[0]));
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+
+        return entries;
+    }
+
+    private void write() throws IOException
+    {
+        File ledgerDir = ledgerFile.getParentFile();
+
+        if (!ledgerDir.isDirectory() && !ledgerDir.mkdirs())
+        {
+            throw new IOException("Could not create ledger directory " + ledgerDir);
+        }
+
+        File tmp = File.createTempFile(ledgerFile.getName(), ".tmp", ledgerDir);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+
+        try
+        {
+            for (Map.Entry<String, ObjectId> entry : deployed.entrySet())
+            {
+                writer.write(entry.getValue().name() + " " + entry.getKey() + "\n");
+            }
+        }
+        finally
+        {
+            writer.close();
+        }
+
+        ledgerFile.delete();
+
+        if (!tmp.renameTo(ledgerFile))
+        {
+            tmp.delete();
+            throw new IOException("Could not write ledger " + ledgerFile);
+        }
+    }
+
+    /**
+     * Returns a file name safe key identifying the organization.
+     *
+     * @param username
+     * @param server
+     * @return
+     */
+    static String getOrgKey(String username, String server)
+    {
+        MessageDigest md = Constants.newMessageDigest();
+        md.update(Constants.encode(server + "|" + username));
+
+        return ObjectId.fromRaw(md.digest()).name();
+    }
+}
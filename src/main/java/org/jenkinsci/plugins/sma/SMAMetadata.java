@@ -12,15 +12,25 @@ public class SMAMetadata implements Comparable<SMAMetadata>
 {
     private static final Logger LOG = Logger.getLogger(SMAMetadata.class.getName());
 
-    private String extension;
-    private String container;
-    private String member;
-    private String metadataType;
-    private String path;
-    private boolean destructible;
-    private boolean valid;
-    private boolean metaxml;
-    private byte[] body;
+    /**
+     * The files that make up a component. A FILE is its body and optional -meta.xml, a FOLDER is only its -meta.xml
+     * and a BUNDLE is every file in the directory named by its member.
+     */
+    public enum Kind { FILE, FOLDER, BUNDLE }
+
+    private static final byte VALID = 1;
+    private static final byte DESTRUCTIBLE = 2;
+    private static final byte METAXML = 4;
+
+    // Everything that is common to a metadata type is shared through the registry. Paths and extensions are
+    // interned, so a component only owns its member name.
+    private final SMAMetadataType type;
+    private final String path;
+    private final String member;
+    private final String extension;
+    private final byte flags;
+    private final Kind kind;
+    private final byte[] body;
 
     /**
      * Constructor for SMAMetadata object
@@ -45,14 +55,67 @@ public class SMAMetadata implements Comparable<SMAMetadata>
                        boolean metaxml,
                        byte[] body)
     {
-        this.extension = extension;
-        this.container = container;
+        this(extension, container, member, metadataType, path, destructible, valid, metaxml, body, Kind.FILE);
+    }
+
+    /**
+     * Constructor for SMAMetadata object
+     *
+     * @param extension
+     * @param container
+     * @param member
+     * @param metadataType
+     * @param path
+     * @param destructible
+     * @param valid
+     * @param metaxml
+     * @param body
+     * @param kind
+     */
+    public SMAMetadata(String extension,
+                       String container,
+                       String member,
+                       String metadataType,
+                       String path,
+                       boolean destructible,
+                       boolean valid,
+                       boolean metaxml,
+                       byte[] body,
+                       Kind kind)
+    {
+        this(new SMAMetadataType(extension, metadataType, container, destructible, metaxml), path, member,
+                extension, valid, metaxml, body, kind);
+    }
+
+    /**
+     * Constructor for SMAMetadata object that shares the type information of a registry
+     *
+     * @param type
+     * @param path
+     * @param member
+     * @param extension
+     * @param valid
+     * @param metaxml
+     * @param body      The contents of the file, which are referenced rather than copied.
+     * @param kind
+     */
+    public SMAMetadata(SMAMetadataType type,
+                       String path,
+                       String member,
+                       String extension,
+                       boolean valid,
+                       boolean metaxml,
+                       byte[] body,
+                       Kind kind)
+    {
+        this.type = type;
+        this.path = path.intern();
         this.member = member;
-        this.metadataType = metadataType;
-        this.path = path;
-        this.destructible = destructible;
-        this.valid = valid;
-        this.metaxml = metaxml;
+        this.extension = extension.equals(type.getExtension()) ? type.getExtension() : extension.intern();
+        this.flags = (byte) ((valid ? VALID : 0) |
+                (type.isDestructible() ? DESTRUCTIBLE : 0) |
+                (metaxml ? METAXML : 0));
+        this.kind = kind;
         this.body = body;
     }
 
@@ -73,7 +136,7 @@ public class SMAMetadata implements Comparable<SMAMetadata>
      */
     public String getContainer()
     {
-        return container;
+        return type.getContainer();
     }
 
     /**
@@ -103,7 +166,7 @@ public class SMAMetadata implements Comparable<SMAMetadata>
      */
     public String getMetadataType()
     {
-        return metadataType;
+        return type.getMetadataType();
     }
 
     /**
@@ -113,7 +176,7 @@ public class SMAMetadata implements Comparable<SMAMetadata>
      */
     public boolean isDestructible()
     {
-        return destructible;
+        return (flags & DESTRUCTIBLE) != 0;
     }
 
     /**
@@ -123,7 +186,7 @@ public class SMAMetadata implements Comparable<SMAMetadata>
      */
     public boolean isValid()
     {
-        return valid;
+        return (flags & VALID) != 0;
     }
 
     /**
@@ -133,7 +196,7 @@ public class SMAMetadata implements Comparable<SMAMetadata>
      */
     public boolean hasMetaxml()
     {
-        return metaxml;
+        return (flags & METAXML) != 0;
     }
 
     /**
@@ -143,12 +206,12 @@ public class SMAMetadata implements Comparable<SMAMetadata>
      */
     public String getFullName()
     {
-        return member + "." + extension;
+        return extension.isEmpty() ? member : member + "." + extension;
     }
 
     public String toString()
     {
-        return container + "/" + getFullName();
+        return getContainer() + "/" + getFullName();
     }
 
     /**
@@ -158,6 +221,16 @@ public class SMAMetadata implements Comparable<SMAMetadata>
      */
     public byte[] getBody() { return body; }
 
+    /**
+     * Returns which files make up this metadata object.
+     *
+     * @return
+     */
+    public Kind getKind()
+    {
+        return kind;
+    }
+
     /**
      * For sorting metadata by extension followed by member
      *
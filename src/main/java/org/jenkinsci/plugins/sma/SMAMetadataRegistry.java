@@ -0,0 +1,294 @@
+package org.jenkinsci.plugins.sma;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Immutable registry of the Salesforce Metadata API types, indexed by file extension.
+ * A registry is built once and can be shared by concurrent builds.
+ *
+ * Folder and bundle types can't be classified by extension alone, since their members are named after the folders
+ * they are filed in or the bundle directory they belong to. Their container directories are kept in a trie below the
+ * source directory, so that a path is classified in a single pass over its segments.
+ *
+ */
+public final class SMAMetadataRegistry
+{
+    private static final String SOURCE_ROOT = "src";
+    private static final String META_SUFFIX = "-meta.xml";
+    private static final SMAMetadataType INVALID = new SMAMetadataType("", "Invalid", "empty", false, false);
+
+    private final String apiVersion;
+    private final Map<String, SMAMetadataType> typesByExtension;
+    private final PathNode containers = new PathNode();
+
+    /**
+     * Constructor for SMAMetadataRegistry
+     *
+     * @param apiVersion
+     * @param types
+     */
+    public SMAMetadataRegistry(String apiVersion, Collection<SMAMetadataType> types)
+    {
+        Map<String, SMAMetadataType> index = new HashMap<String, SMAMetadataType>();
+
+        for (SMAMetadataType type : types)
+        {
+            // Keep the first definition of an extension, as the DOM scan used to
+            if (!index.containsKey(type.getExtension()))
+            {
+                index.put(type.getExtension(), type);
+            }
+
+            if (type.getLayout() != SMAMetadataType.Layout.FLAT)
+            {
+                containers.child(SOURCE_ROOT).child(type.getContainer()).type = type;
+            }
+        }
+
+        this.apiVersion = apiVersion;
+        this.typesByExtension = Collections.unmodifiableMap(index);
+    }
+
+    /**
+     * Parses a registry from a salesforceMetadata.xml document.
+     *
+     * @param document
+     * @return
+     * @throws Exception
+     */
+    public static SMAMetadataRegistry parse(InputStream document) throws Exception
+    {
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(document);
+        doc.getDocumentElement().normalize();
+
+        NodeList extNodes = doc.getElementsByTagName("extension");
+        List<SMAMetadataType> parsed = new ArrayList<SMAMetadataType>();
+
+        for (int iterator = 0; iterator < extNodes.getLength(); iterator++)
+        {
+            Element element = (Element) extNodes.item(iterator);
+
+            String layout = getText(element, "layout");
+
+            parsed.add(new SMAMetadataType(
+                    element.getAttribute("name"),
+                    getText(element, "metadata"),
+                    getText(element, "container"),
+                    Boolean.parseBoolean(getText(element, "destructible")),
+                    Boolean.parseBoolean(getText(element, "metaxml")),
+                    layout.isEmpty() ? SMAMetadataType.Layout.FLAT :
+                            SMAMetadataType.Layout.valueOf(layout.toUpperCase(Locale.ENGLISH))
+            ));
+        }
+
+        return new SMAMetadataRegistry(doc.getDocumentElement().getAttribute("API"), parsed);
+    }
+
+    /**
+     * Returns the Salesforce Metadata API Version of this registry
+     *
+     * @return
+     */
+    public String getAPIVersion()
+    {
+        return apiVersion;
+    }
+
+    /**
+     * Returns the type registered for an extension, or null if the extension is not a known metadata type.
+     *
+     * @param extension
+     * @return
+     */
+    public SMAMetadataType getType(String extension)
+    {
+        return typesByExtension.get(extension);
+    }
+
+    /**
+     * Returns all of the registered types
+     *
+     * @return
+     */
+    public Collection<SMAMetadataType> getTypes()
+    {
+        return typesByExtension.values();
+    }
+
+    /**
+     * Creates an SMAMetadata object from a string representation of a file's path and filename.
+     *
+     * @param filepath
+     * @param data
+     * @return
+     */
+    public SMAMetadata createMetadataObject(String filepath, byte[] data)
+    {
+        SMAMetadata nested = createNestedMetadataObject(filepath, data);
+
+        if (nested != null)
+        {
+            return nested;
+        }
+
+        int nameStart = Math.max(filepath.lastIndexOf('/'), filepath.lastIndexOf('\\')) + 1;
+        int extensionStart = filepath.lastIndexOf('.');
+
+        String path = filepath.substring(0, nameStart);
+        String member;
+        String extension;
+
+        if (extensionStart >= nameStart)
+        {
+            member = filepath.substring(nameStart, extensionStart);
+            extension = filepath.substring(extensionStart + 1);
+        }
+        else
+        {
+            member = filepath.substring(nameStart);
+            extension = "";
+        }
+
+        SMAMetadataType type = typesByExtension.get(extension);
+
+        if (type == null)
+        {
+            return new SMAMetadata(INVALID, path, member, extension, false, false, data, SMAMetadata.Kind.FILE);
+        }
+
+        return new SMAMetadata(type, path, member, extension, true, type.hasMetaxml(), data, SMAMetadata.Kind.FILE);
+    }
+
+    /**
+     * Classifies a path below the container of a folder or bundle type, or returns null if the path is not in one.
+     *
+     * @param filepath
+     * @param data
+     * @return
+     */
+    private SMAMetadata createNestedMetadataObject(String filepath, byte[] data)
+    {
+        PathNode node = containers;
+        int start = 0;
+        int end;
+
+        // Walk the directories until a container is reached. Directories above the source root are skipped, but
+        // once inside it every directory has to match the trie.
+        while (node.type == null)
+        {
+            end = filepath.indexOf('/', start);
+
+            if (end < 0)
+            {
+                return null;
+            }
+
+            PathNode child = node.children.get(filepath.substring(start, end));
+
+            if (child == null && node != containers)
+            {
+                return null;
+            }
+
+            node = child != null ? child : node;
+            start = end + 1;
+        }
+
+        SMAMetadataType type = node.type;
+        String path = filepath.substring(0, start);
+        String rest = filepath.substring(start);
+
+        if (rest.endsWith(META_SUFFIX))
+        {
+            rest = rest.substring(0, rest.length() - META_SUFFIX.length());
+        }
+
+        int folderEnd = rest.indexOf('/');
+
+        if (rest.isEmpty() || folderEnd == 0)
+        {
+            return new SMAMetadata(INVALID, path, rest, "", false, false, data, SMAMetadata.Kind.FILE);
+        }
+
+        if (type.getLayout() == SMAMetadataType.Layout.BUNDLE)
+        {
+            if (folderEnd < 0)
+            {
+                // Bundles are directories, a file directly in the container isn't part of any
+                return new SMAMetadata(INVALID, path, rest, "", false, false, data, SMAMetadata.Kind.FILE);
+            }
+
+            return new SMAMetadata(type, path, rest.substring(0, folderEnd), "", true, false, null,
+                    SMAMetadata.Kind.BUNDLE);
+        }
+
+        if (folderEnd < 0)
+        {
+            // The folder itself, which is described by its -meta.xml alone
+            return new SMAMetadata(type, path, rest, "", true, true, data, SMAMetadata.Kind.FOLDER);
+        }
+
+        // Members are named by their path below the container. Only the extension of the type is dropped, so
+        // documents keep whichever extension they were uploaded with.
+        String member = rest;
+        String extension = "";
+        int extensionStart = rest.lastIndexOf('.');
+
+        if (extensionStart > rest.lastIndexOf('/') + 1 &&
+                rest.substring(extensionStart + 1).equals(type.getExtension()))
+        {
+            member = rest.substring(0, extensionStart);
+            extension = type.getExtension();
+        }
+
+        return new SMAMetadata(type, path, member, extension, true, type.hasMetaxml(), data, SMAMetadata.Kind.FILE);
+    }
+
+    /**
+     * Returns the trimmed text of the first child element with the tag name, or an empty string if there is none.
+     *
+     * @param element
+     * @param tagName
+     * @return
+     */
+    private static String getText(Element element, String tagName)
+    {
+        NodeList nodes = element.getElementsByTagName(tagName);
+
+        return nodes.getLength() == 0 ? "" : nodes.item(0).getTextContent().trim();
+    }
+
+    /**
+     * A directory in the trie of container directories. Nodes with a type are containers.
+     */
+    private static class PathNode
+    {
+        private final Map<String, PathNode> children = new HashMap<String, PathNode>();
+        private SMAMetadataType type;
+
+        PathNode child(String segment)
+        {
+            PathNode child = children.get(segment);
+
+            if (child == null)
+            {
+                child = new PathNode();
+                children.put(segment, child);
+            }
+
+            return child;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package org.jenkinsci.plugins.sma;
+
+/**
+ * Immutable description of a Salesforce Metadata API type as configured in salesforceMetadata.xml.
+ *
+ */
+public final class SMAMetadataType
+{
+    /**
+     * How the components of a type are laid out under its container directory.
+     * FLAT components are single files, FOLDER components are filed in folders that are components themselves and
+     * BUNDLE components are directories of files that are deployed together.
+     */
+    public enum Layout { FLAT, FOLDER, BUNDLE }
+
+    private final String extension;
+    private final String metadataType;
+    private final String container;
+    private final boolean destructible;
+    private final boolean metaxml;
+    private final Layout layout;
+
+    /**
+     * Constructor for SMAMetadataType
+     *
+     * @param extension
+     * @param metadataType
+     * @param container
+     * @param destructible
+     * @param metaxml
+     */
+    public SMAMetadataType(String extension,
+                           String metadataType,
+                           String container,
+                           boolean destructible,
+                           boolean metaxml)
+    {
+        this(extension, metadataType, container, destructible, metaxml, Layout.FLAT);
+    }
+
+    /**
+     * Constructor for SMAMetadataType
+     *
+     * @param extension
+     * @param metadataType
+     * @param container
+     * @param destructible
+     * @param metaxml
+     * @param layout
+     */
+    public SMAMetadataType(String extension,
+                           String metadataType,
+                           String container,
+                           boolean destructible,
+                           boolean metaxml,
+                           Layout layout)
+    {
+        this.extension = extension;
+        this.metadataType = metadataType;
+        this.container = container;
+        this.destructible = destructible;
+        this.metaxml = metaxml;
+        this.layout = layout;
+    }
+
+    public String getExtension()
+    {
+        return extension;
+    }
+
+    public String getMetadataType()
+    {
+        return metadataType;
+    }
+
+    public String getContainer()
+    {
+        return container;
+    }
+
+    public boolean isDestructible()
+    {
+        return destructible;
+    }
+
+    public boolean hasMetaxml()
+    {
+        return metaxml;
+    }
+
+    public Layout getLayout()
+    {
+        return layout;
+    }
+}
@@ -1,123 +1,162 @@
 package org.jenkinsci.plugins.sma;
 
-import org.apache.commons.io.FilenameUtils;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import java.io.File;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Logger;
 
 /**
  * Class for the salesforceMetadata.xml document that contains Salesforce Metadata API information.
  *
+ * The document is compiled into SMAMetadataTable when the plugin is built, so no XML is parsed at runtime. The
+ * registry built from the table is immutable and shared by all builds.
+ *
+ * Jobs may target another Metadata API version. A registry is built once per version and cached for the life of
+ * the JVM; a version with its own salesforceMetadata-[version].xml resource uses the types listed there, any other
+ * version uses the compiled types.
+ *
  */
 public class SMAMetadataTypes
 {
     private static final Logger LOG = Logger.getLogger(SMAMetadataTypes.class.getName());
 
-    private static final ClassLoader loader = SMAMetadataTypes.class.getClassLoader();
-    private static String pathToResource = loader.getResource("org/jenkinsci/plugins/sma/salesforceMetadata.xml").toString();
-    private static Document doc;
-    private static Boolean docAlive = false;
+    private static final String VERSION_RESOURCE = "org/jenkinsci/plugins/sma/salesforceMetadata-%s.xml";
+    private static final ConcurrentMap<String, SMAMetadataRegistry> registries =
+            new ConcurrentHashMap<String, SMAMetadataRegistry>();
+
+    /**
+     * Lazily builds the default registry. The JVM guarantees the holder is initialized exactly once and safely
+     * published to every thread.
+     */
+    private static class DefaultRegistry
+    {
+        private static final SMAMetadataRegistry INSTANCE = new SMAMetadataRegistry(SMAMetadataTable.API_VERSION,
+                Arrays.asList(SMAMetadataTable.TYPES));
+    }
 
     /**
-     * Initializes the Document representation of the salesforceMetadata.xml file
+     * Returns the registry compiled from salesforceMetadata.xml
      *
-     * @throws Exception
+     * @return
      */
-    private static void initDocument() throws Exception
+    public static SMAMetadataRegistry getRegistry()
     {
-        DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder dbBuilder = dbFactory.newDocumentBuilder();
-        doc = dbBuilder.parse(pathToResource);
-        docAlive = true;
+        return DefaultRegistry.INSTANCE;
     }
 
     /**
-     * Returns the Salesforce Metadata API Version
+     * Returns the registry for a Metadata API version, or the compiled registry if no version is given.
      *
-     * @return version
+     * @param apiVersion The Metadata API version, e.g. "36.0".
+     * @return
+     * @throws Exception
      */
-    public static String getAPIVersion() throws Exception
+    public static SMAMetadataRegistry getRegistry(String apiVersion) throws Exception
     {
-        if (!docAlive)
+        if (apiVersion == null || apiVersion.trim().isEmpty())
         {
-            initDocument();
+            return getRegistry();
         }
 
-        String version = null;
+        String version = normalizeVersion(apiVersion);
 
-        doc.getDocumentElement().normalize();
+        if (version.equals(SMAMetadataTable.API_VERSION))
+        {
+            return getRegistry();
+        }
 
-        NodeList verNodes = doc.getElementsByTagName("version");
+        SMAMetadataRegistry registry = registries.get(version);
 
-        //There should only be one node in this list
-        for (int iterator = 0; iterator < verNodes.getLength(); iterator++)
+        if (registry == null)
         {
-            Node curNode = verNodes.item(iterator);
-            Element verElement = (Element) curNode;
-            //If for some reason there is more than one, get the first one
-            version = verElement.getAttribute("API");
+            // Lookups stay lock free; only the first build of a new version waits for it to load
+            synchronized (registries)
+            {
+                registry = registries.get(version);
+
+                if (registry == null)
+                {
+                    registry = loadRegistry(version);
+                    registries.put(version, registry);
+                }
+            }
         }
 
-        return version;
+        return registry;
     }
 
     /**
-     * Creates an SMAMetadata object from a string representation of a file's path and filename.
+     * Returns the version in its canonical [major].[minor] form, e.g. "36" becomes "36.0".
      *
-     * @param filepath
-     * @return SMAMetadata
-     * @throws Exception
+     * @param apiVersion
+     * @return
      */
-    public static SMAMetadata createMetadataObject(String filepath, byte[] data) throws Exception
+    public static String normalizeVersion(String apiVersion)
     {
-        if (!docAlive)
+        String version = apiVersion.trim();
+
+        if (version.matches("\\d+"))
         {
-            initDocument();
+            version = version + ".0";
         }
 
-        String container = "empty";
-        String metadataType = "Invalid";
-        boolean destructible = false;
-        boolean valid = false;
-        boolean metaxml = false;
-
-        File file = new File(filepath);
-        String object = file.getName();
-        String member = FilenameUtils.removeExtension(object);
-        String extension = FilenameUtils.getExtension(filepath);
-        String path = FilenameUtils.getFullPath(filepath);
+        if (!version.matches("\\d+\\.\\d+"))
+        {
+            throw new IllegalArgumentException("Invalid Metadata API version: " + apiVersion);
+        }
 
-        //Normalize the salesforceMetadata.xml configuration file
-        doc.getDocumentElement().normalize();
+        return version;
+    }
 
-        NodeList extNodes = doc.getElementsByTagName("extension");
+    /**
+     * Builds the registry for a version from its own document if the plugin ships one, or from the compiled types.
+     *
+     * @param version
+     * @return
+     * @throws Exception
+     */
+    private static SMAMetadataRegistry loadRegistry(String version) throws Exception
+    {
+        String resource = String.format(VERSION_RESOURCE, version);
+        InputStream document = SMAMetadataTypes.class.getClassLoader().getResourceAsStream(resource);
 
-        //Get the node with the corresponding extension and get the relevant information for
-        //creating the SMAMetadata object
-        for (int iterator = 0; iterator < extNodes.getLength(); iterator++)
+        if (document == null)
         {
-            Node curNode = extNodes.item(iterator);
+            LOG.fine("Using the compiled metadata types for API version " + version);
+            return new SMAMetadataRegistry(version, getRegistry().getTypes());
+        }
 
-            Element element = (Element) curNode;
-            if (element.getAttribute("name").equals(extension))
-            {
-                container = element.getElementsByTagName("container").item(0).getTextContent();
-                metadataType = element.getElementsByTagName("metadata").item(0).getTextContent();
-                destructible = Boolean.parseBoolean(element.getElementsByTagName("destructible").item(0).
-                        getTextContent());
-                valid = true;
-                metaxml = Boolean.parseBoolean(element.getElementsByTagName("metaxml").item(0).getTextContent());
-                break;
-            }
+        try
+        {
+            LOG.fine("Loading the metadata types for API version " + version + " from " + resource);
+            return new SMAMetadataRegistry(version, SMAMetadataRegistry.parse(document).getTypes());
         }
+        finally
+        {
+            document.close();
+        }
+    }
 
-        return new SMAMetadata(extension, container, member, metadataType,
-                path, destructible, valid, metaxml, data);
+    /**
+     * Returns the Salesforce Metadata API Version
+     *
+     * @return version
+     */
+    public static String getAPIVersion() throws Exception
+    {
+        return SMAMetadataTable.API_VERSION;
+    }
+
+    /**
+     * Creates an SMAMetadata object from a string representation of a file's path and filename.
+     *
+     * @param filepath
+     * @return SMAMetadata
+     * @throws Exception
+     */
+    public static SMAMetadata createMetadataObject(String filepath, byte[] data) throws Exception
+    {
+        return getRegistry().createMetadataObject(filepath, data);
     }
-}
\ No newline at end of file
+}
@@ -7,10 +7,13 @@ import com.sforce.ws.parser.XmlOutputStream;
 
 import javax.xml.namespace.QName;
 import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 /**
  * Wrapper for com.sforce.soap.metadata.Package.
@@ -21,6 +24,7 @@ public class SMAPackage
     private List<SMAMetadata> contents;
     private boolean destructiveChange;
     private Package packageManifest;
+    private byte[] manifestBytes;
 
     /**
      * Constructor for SMAPackage
@@ -31,12 +35,27 @@ public class SMAPackage
      */
     public SMAPackage(List<SMAMetadata> contents,
                       boolean destructiveChange) throws Exception
+    {
+        this(contents, destructiveChange, SMAMetadataTypes.getAPIVersion());
+    }
+
+    /**
+     * Constructor for SMAPackage
+     * Generates a Package for deployment against the given Metadata API version
+     *
+     * @param contents
+     * @param destructiveChange
+     * @param apiVersion
+     */
+    public SMAPackage(List<SMAMetadata> contents,
+                      boolean destructiveChange,
+                      String apiVersion) throws Exception
     {
         this.contents = contents;
         this.destructiveChange = destructiveChange;
 
         packageManifest = new Package();
-        packageManifest.setVersion(SMAMetadataTypes.getAPIVersion());
+        packageManifest.setVersion(apiVersion);
         packageManifest.setTypes((PackageTypeMembers[]) determinePackageTypes().toArray(new PackageTypeMembers[0]));
     }
 
@@ -65,23 +84,51 @@ public class SMAPackage
     }
 
     /**
-     * Transforms the Package into a ByteArray
+     * Transforms the Package into a String
      *
-     * @return String(packageStream.toByteArray())
+     * @return
      * @throws Exception
      */
     public String getPackage() throws Exception
     {
-        TypeMapper typeMapper = new TypeMapper();
-        ByteArrayOutputStream packageStream = new ByteArrayOutputStream();
-        QName packageQName = new QName("http://soap.sforce.com/2006/04/metadata", "Package");
-        XmlOutputStream xmlOutputStream = new XmlOutputStream(packageStream, true);
-        xmlOutputStream.setPrefix("", "http://soap.sforce.com/2006/04/metadata");
-        xmlOutputStream.setPrefix("xsi", "http://www.w3.org/2001/XMLSchema-instance");
-        packageManifest.write(packageQName, xmlOutputStream, typeMapper);
-        xmlOutputStream.close();
-
-        return new String(packageStream.toByteArray());
+        return new String(getPackageBytes(), "UTF-8");
+    }
+
+    /**
+     * Returns the UTF-8 encoded manifest. The manifest is only serialized on the first call; the returned array is
+     * shared and must not be modified.
+     *
+     * @return
+     * @throws Exception
+     */
+    public byte[] getPackageBytes() throws Exception
+    {
+        if (manifestBytes == null)
+        {
+            TypeMapper typeMapper = new TypeMapper();
+            ByteArrayOutputStream packageStream = new ByteArrayOutputStream();
+            QName packageQName = new QName("http://soap.sforce.com/2006/04/metadata", "Package");
+            XmlOutputStream xmlOutputStream = new XmlOutputStream(packageStream, true);
+            xmlOutputStream.setPrefix("", "http://soap.sforce.com/2006/04/metadata");
+            xmlOutputStream.setPrefix("xsi", "http://www.w3.org/2001/XMLSchema-instance");
+            packageManifest.write(packageQName, xmlOutputStream, typeMapper);
+            xmlOutputStream.close();
+
+            manifestBytes = packageStream.toByteArray();
+        }
+
+        return manifestBytes;
+    }
+
+    /**
+     * Writes the UTF-8 encoded manifest to a stream, such as an open zip entry.
+     *
+     * @param out
+     * @throws Exception
+     */
+    public void writeTo(OutputStream out) throws Exception
+    {
+        out.write(getPackageBytes());
     }
 
     /**
@@ -112,9 +159,9 @@ public class SMAPackage
     private List<PackageTypeMembers> determinePackageTypes()
     {
         List<PackageTypeMembers> types = new ArrayList<PackageTypeMembers>();
-        Map<String, List<String>> contentsByType = new HashMap<String, List<String>>();
+        Map<String, Set<String>> contentsByType = new TreeMap<String, Set<String>>();
 
-        // Sort the metadata objects by metadata type
+        // Sort the metadata objects by metadata type, so the same contents always give the same manifest
         for (SMAMetadata mdObject : contents)
         {
             if (destructiveChange && !mdObject.isDestructible())
@@ -127,7 +174,7 @@ public class SMAPackage
                 contentsByType.get(mdObject.getMetadataType()).add(mdObject.getMember());
             } else
             {
-                List<String> memberList = new ArrayList<String>();
+                Set<String> memberList = new TreeSet<String>();
                 memberList.add(mdObject.getMember());
                 contentsByType.put(mdObject.getMetadataType(), memberList);
             }
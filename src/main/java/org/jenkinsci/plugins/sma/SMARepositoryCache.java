@@ -0,0 +1,205 @@
+package org.jenkinsci.plugins.sma;
+
+import hudson.Extension;
+import hudson.init.Terminator;
+import hudson.model.PeriodicWork;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Jenkins wide cache of open repositories, keyed by git directory.
+ *
+ * Builds of the same job share one Repository so that its pack indexes and caches stay warm between builds. Every
+ * open must be paired with a release; repositories that have not been referenced for the idle timeout are closed,
+ * either when the cache is next used or by a periodic sweep, and every unreferenced repository is closed when
+ * Jenkins shuts down.
+ *
+ */
+public class SMARepositoryCache
+{
+    private static final Logger LOG = Logger.getLogger(SMARepositoryCache.class.getName());
+
+    private static final Map<File, CachedRepository> repositories = new HashMap<File, CachedRepository>();
+    private static long idleTimeout = 10 * 60 * 1000;
+
+    /**
+     * Returns the open repository for the git directory, opening it if it is not cached.
+     *
+     * @param gitDir
+     * @return
+     * @throws IOException
+     */
+    public static synchronized Repository open(File gitDir) throws IOException
+    {
+        evictIdle();
+
+        File key = gitDir.getCanonicalFile();
+        CachedRepository cached = repositories.get(key);
+
+        if (cached == null)
+        {
+            Repository repository = new FileRepositoryBuilder().setGitDir(key).readEnvironment().build();
+            cached = new CachedRepository(repository);
+            repositories.put(key, cached);
+        }
+        else
+        {
+            LOG.fine("Reusing open repository " + key);
+        }
+
+        cached.references++;
+
+        return cached.repository;
+    }
+
+    /**
+     * Releases a reference to a repository obtained from open.
+     *
+     * @param repository
+     */
+    public static synchronized void release(Repository repository)
+    {
+        for (CachedRepository cached : repositories.values())
+        {
+            if (cached.repository == repository)
+            {
+                cached.references = Math.max(0, cached.references - 1);
+                cached.lastUsed = System.currentTimeMillis();
+                break;
+            }
+        }
+
+        evictIdle();
+    }
+
+    /**
+     * Closes the repository for the git directory. If it is still referenced, it is closed on its last release.
+     *
+     * @param gitDir
+     * @throws IOException
+     */
+    public static synchronized void close(File gitDir) throws IOException
+    {
+        CachedRepository cached = repositories.get(gitDir.getCanonicalFile());
+
+        if (cached != null)
+        {
+            cached.closeRequested = true;
+        }
+
+        evictIdle();
+    }
+
+    /**
+     * Closes every repository that is not referenced.
+     */
+    public static synchronized void closeAll()
+    {
+        for (CachedRepository cached : repositories.values())
+        {
+            cached.closeRequested = true;
+        }
+
+        evictIdle();
+    }
+
+    /**
+     * Closes the unreferenced repositories that have been idle for longer than the idle timeout.
+     */
+    public static synchronized void closeIdle()
+    {
+        evictIdle();
+    }
+
+    /**
+     * Closes the unreferenced repositories when Jenkins shuts down.
+     */
+    @Terminator
+    public static void shutdown()
+    {
+        closeAll();
+    }
+
+    /**
+     * Returns whether an open repository is cached for the git directory.
+     *
+     * @param gitDir
+     * @return
+     * @throws IOException
+     */
+    public static synchronized boolean isCached(File gitDir) throws IOException
+    {
+        return repositories.containsKey(gitDir.getCanonicalFile());
+    }
+
+    /**
+     * Sets how long in milliseconds an unreferenced repository stays open.
+     *
+     * @param idleTimeout
+     */
+    public static synchronized void setIdleTimeout(long idleTimeout)
+    {
+        SMARepositoryCache.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Closes the unreferenced repositories that were idle for too long or asked to be closed.
+     */
+    private static void evictIdle()
+    {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<File, CachedRepository>> entries = repositories.entrySet().iterator();
+
+        while (entries.hasNext())
+        {
+            Map.Entry<File, CachedRepository> entry = entries.next();
+            CachedRepository cached = entry.getValue();
+
+            if (cached.references == 0 && (cached.closeRequested || now - cached.lastUsed >= idleTimeout))
+            {
+                LOG.fine("Closing repository " + entry.getKey());
+                cached.repository.close();
+                entries.remove();
+            }
+        }
+    }
+
+    /**
+     * Closes idle repositories even when no builds use the cache.
+     */
+    @Extension
+    public static class IdleSweep extends PeriodicWork
+    {
+        @Override
+        public long getRecurrencePeriod()
+        {
+            return MIN;
+        }
+
+        @Override
+        protected void doRun() throws Exception
+        {
+            closeIdle();
+        }
+    }
+
+    private static class CachedRepository
+    {
+        private final Repository repository;
+        private int references;
+        private long lastUsed = System.currentTimeMillis();
+        private boolean closeRequested;
+
+        CachedRepository(Repository repository)
+        {
+            this.repository = repository;
+        }
+    }
+}
@@ -1,13 +1,23 @@
 package org.jenkinsci.plugins.sma;
 
 import hudson.EnvVars;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.logging.Logger;
+import java.util.zip.Deflater;
 
 /**
  * Class that contains all of the configuration pertinent to the running job
@@ -18,11 +28,23 @@ public class SMARunner
     private static final Logger LOG = Logger.getLogger(SMARunner.class.getName());
 
     private Boolean deployAll = false;
+    private Boolean ignoreLedger = false;
+    private Boolean ignoreValidationCache = false;
+    private int chunkMaxFiles = SMAChunker.MAX_FILES;
+    private long chunkMaxSize = SMAChunker.MAX_UNZIPPED_SIZE;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private int zipThreads = 1;
+    private File ledgerDir;
+    private File validationDir;
+    private File packageDir;
+    private SMALedger ledger;
+    private SMAValidationCache validationCache;
     private String currentCommit;
     private String previousCommit;
     private String rollbackLocation;
     private SMAGit git;
-    private List<SMAMetadata> deployMetadata = new ArrayList<SMAMetadata>();
+    private SMAMetadataRegistry registry = SMAMetadataTypes.getRegistry();
+    private List<SMAMetadata> deployMetadata;
     private List<SMAMetadata> deleteMetadata = new ArrayList<SMAMetadata>();
     private List<SMAMetadata> rollbackMetadata = new ArrayList<SMAMetadata>();
     private List<SMAMetadata> rollbackAdditions = new ArrayList<SMAMetadata>();
@@ -84,7 +106,84 @@ public class SMARunner
             git = new SMAGit(pathToWorkspace, currentCommit, previousCommit, SMAGit.Mode.STD);
         }
 
+        if (jobVariables.containsKey("SMA_DIFF_CACHE_SIZE"))
+        {
+            git.setDiffCacheSize(getNumber(jobVariables, "SMA_DIFF_CACHE_SIZE", SMAGit.DIFF_CACHE_SIZE, 0,
+                    Long.MAX_VALUE));
+        }
+
+        if (jobVariables.containsKey("SMA_BLOB_LOADER_THREADS"))
+        {
+            git.setBlobLoaderThreads((int) getNumber(jobVariables, "SMA_BLOB_LOADER_THREADS",
+                    git.getBlobLoaderThreads(), 1, Integer.MAX_VALUE));
+        }
+
+        if (jobVariables.containsKey("SMA_IGNORE_LEDGER"))
+        {
+            ignoreLedger = Boolean.valueOf(jobVariables.get("SMA_IGNORE_LEDGER"));
+        }
+
+        if (jobVariables.containsKey("SMA_IGNORE_VALIDATION_CACHE"))
+        {
+            ignoreValidationCache = Boolean.valueOf(jobVariables.get("SMA_IGNORE_VALIDATION_CACHE"));
+        }
+
+        chunkMaxFiles = (int) getNumber(jobVariables, "SMA_CHUNK_MAX_FILES", SMAChunker.MAX_FILES, 1,
+                Integer.MAX_VALUE);
+        chunkMaxSize = getNumber(jobVariables, "SMA_CHUNK_MAX_BYTES", SMAChunker.MAX_UNZIPPED_SIZE, 1,
+                Long.MAX_VALUE);
+        compressionLevel = (int) getNumber(jobVariables, "SMA_COMPRESSION_LEVEL", Deflater.DEFAULT_COMPRESSION,
+                Deflater.DEFAULT_COMPRESSION, Deflater.BEST_COMPRESSION);
+        zipThreads = (int) getNumber(jobVariables, "SMA_ZIP_THREADS", 1, 1, Integer.MAX_VALUE);
+
+        // Ledgers and validation caches are kept per organization, so they live outside of the workspace of any
+        // single job
+        String jenkinsHome = jobVariables.get("JENKINS_HOME");
+        ledgerDir = new File(jenkinsHome != null ? jenkinsHome : pathToWorkspace, "sma/ledger");
+        validationDir = new File(jenkinsHome != null ? jenkinsHome : pathToWorkspace, "sma/validated");
+
         rollbackLocation = pathToWorkspace + "/sma/rollback" + jobName + buildNumber + ".zip";
+        packageDir = new File(pathToWorkspace, "sma/packages");
+    }
+
+    /**
+     * Returns the value of a numeric job variable. A value that is not a number or is out of range is reported and
+     * the default is used instead, so a typo in a tuning variable doesn't fail the build.
+     *
+     * @param jobVariables
+     * @param name         The name of the variable.
+     * @param defaultValue The value used when the variable is not set or is invalid.
+     * @param min          The smallest valid value.
+     * @param max          The largest valid value.
+     * @return
+     */
+    static long getNumber(EnvVars jobVariables, String name, long defaultValue, long min, long max)
+    {
+        String value = jobVariables.get(name);
+
+        if (value == null || value.trim().isEmpty())
+        {
+            return defaultValue;
+        }
+
+        try
+        {
+            long number = Long.parseLong(value.trim());
+
+            if (number >= min && number <= max)
+            {
+                return number;
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            // Reported below
+        }
+
+        LOG.warning("Ignoring " + name + "=" + value + ", expected a whole number between " + min + " and " + max +
+                ". Using " + defaultValue + " instead.");
+
+        return defaultValue;
     }
 
     /**
@@ -98,21 +197,42 @@ public class SMARunner
     }
 
     /**
-     * Returns the SMAMetadata that is going to be deployed in this job
+     * Returns the SMAMetadata that is going to be deployed in this job. The list is computed on the first call.
      *
      * @return
      * @throws Exception
      */
     public List<SMAMetadata> getPackageMembers() throws Exception
     {
+        if (deployMetadata != null)
+        {
+            return deployMetadata;
+        }
+
         if (deployAll)
         {
-            deployMetadata = buildMetadataList(git.getAllMetadata());
+            if (ledger != null)
+            {
+                deployMetadata = buildMetadataList(getUndeployedComponents(git.listAllMetadata()));
+            }
+            else
+            {
+                deployMetadata = buildMetadataList(git.listAllMetadata().keySet());
+            }
         }
-        else if (deployMetadata.isEmpty())
+        else
         {
-            Map<String, byte[]> positiveChanges = git.getNewMetadata();
-            positiveChanges.putAll(git.getUpdatedMetadata());
+            List<String> positiveChanges = new ArrayList<String>(git.getNewMetadata().keySet());
+            positiveChanges.addAll(git.getUpdatedMetadata().keySet());
+
+            // Removing a file from a bundle that still exists changes the bundle rather than deleting it
+            for (String deleted : git.getDeletedMetadata().keySet())
+            {
+                if (isBundleFile(deleted, currentCommit))
+                {
+                    positiveChanges.add(deleted);
+                }
+            }
 
             deployMetadata = buildMetadataList(positiveChanges);
         }
@@ -120,6 +240,157 @@ public class SMARunner
         return deployMetadata;
     }
 
+    /**
+     * Returns whether this job deploys all the metadata and the ledger of the organization shows that all of it is
+     * already deployed there.
+     *
+     * @return
+     * @throws Exception
+     */
+    public boolean isUpToDate() throws Exception
+    {
+        return deployAll && ledger != null && getPackageMembers().isEmpty();
+    }
+
+    /**
+     * Selects the Metadata API version this job deploys against. Must be called before the metadata lists are built.
+     *
+     * @param apiVersion The version, or null or empty for the default version.
+     * @throws Exception
+     */
+    public void setAPIVersion(String apiVersion) throws Exception
+    {
+        registry = SMAMetadataTypes.getRegistry(apiVersion);
+    }
+
+    /**
+     * Returns the Metadata API version this job deploys against
+     *
+     * @return
+     */
+    public String getAPIVersion()
+    {
+        return registry.getAPIVersion();
+    }
+
+    /**
+     * Uses the deployed-state ledger of the given organization to limit full deployments to the components whose
+     * blob ids differ from what was last deployed there. Has no effect when SMA_IGNORE_LEDGER is set.
+     *
+     * @param username
+     * @param server
+     */
+    public void loadLedger(String username, String server)
+    {
+        if (!ignoreLedger)
+        {
+            ledger = new SMALedger(ledgerDir, username, server);
+        }
+    }
+
+    /**
+     * Uses the validation cache of the given organization to skip validating packages that were already validated
+     * there. Has no effect when SMA_IGNORE_VALIDATION_CACHE is set.
+     *
+     * @param username
+     * @param server
+     */
+    public void loadValidationCache(String username, String server)
+    {
+        if (!ignoreValidationCache)
+        {
+            validationCache = new SMAValidationCache(validationDir, username, server);
+        }
+    }
+
+    /**
+     * Returns whether the validation with the given key already succeeded against the organization.
+     *
+     * @param validationKey
+     * @return
+     * @throws Exception
+     */
+    public boolean isValidated(String validationKey) throws Exception
+    {
+        return validationCache != null && validationCache.isValidated(validationKey);
+    }
+
+    /**
+     * Records a successful validation in the validation cache of the organization.
+     *
+     * @param validationKey
+     * @throws Exception
+     */
+    public void recordValidation(String validationKey) throws Exception
+    {
+        if (validationCache != null)
+        {
+            validationCache.record(validationKey);
+        }
+    }
+
+    /**
+     * Records the metadata of this job as deployed in the ledger of the organization.
+     *
+     * @throws Exception
+     */
+    public void recordDeployment() throws Exception
+    {
+        if (ledger == null)
+        {
+            return;
+        }
+
+        Map<String, ObjectId> deployedFiles = new HashMap<String, ObjectId>();
+        List<String> destroyedFiles = new ArrayList<String>();
+
+        for (SMAMetadata metadata : getPackageMembers())
+        {
+            deployedFiles.putAll(getFiles(metadata, currentCommit));
+        }
+
+        if (!deployAll)
+        {
+            for (SMAMetadata metadata : getDestructionMembers())
+            {
+                String pathToMetadata = metadata.getPath() + metadata.getFullName();
+
+                if (metadata.getKind() == SMAMetadata.Kind.BUNDLE)
+                {
+                    destroyedFiles.addAll(git.listFiles(pathToMetadata + "/", git.getPrevCommit()).keySet());
+                }
+                else
+                {
+                    destroyedFiles.add(pathToMetadata);
+                    destroyedFiles.add(pathToMetadata + "-meta.xml");
+                }
+            }
+        }
+
+        ledger.record(deployedFiles, destroyedFiles);
+    }
+
+    /**
+     * Returns the components that have a file whose blob id differs from the ledger of the organization
+     *
+     * @param allMetadata
+     * @return
+     * @throws Exception
+     */
+    private Collection<String> getUndeployedComponents(Map<String, ObjectId> allMetadata) throws Exception
+    {
+        Set<String> components = new TreeSet<String>();
+
+        for (String changed : ledger.getChanged(allMetadata))
+        {
+            components.add(SMAUtility.checkMeta(changed));
+        }
+
+        LOG.info(components.size() + " components differ from the ledger " + ledger.getLedgerFile());
+
+        return components;
+    }
+
     /**
      * Returns the SMAMetadata that is going to be deleted in this job
      *
@@ -130,9 +401,17 @@ public class SMARunner
     {
         if (deleteMetadata.isEmpty())
         {
-            Map<String, byte[]> negativeChanges = git.getDeletedMetadata();
+            List<String> deletions = new ArrayList<String>();
 
-            deleteMetadata = buildMetadataList(negativeChanges);
+            for (String deleted : git.getDeletedMetadata().keySet())
+            {
+                if (!isBundleFile(deleted, currentCommit))
+                {
+                    deletions.add(deleted);
+                }
+            }
+
+            deleteMetadata = buildMetadataList(deletions);
         }
 
         return deleteMetadata;
@@ -145,38 +424,89 @@ public class SMARunner
             getDestructionMembers();
         }
 
+        List<String> originals = new ArrayList<String>(git.getOriginalMetadata().keySet());
+
+        // Adding a file to a bundle that already existed changes the bundle, so rolling back restores the bundle
+        for (String added : git.getNewMetadata().keySet())
+        {
+            if (isBundleFile(added, git.getPrevCommit()))
+            {
+                originals.add(added);
+            }
+        }
+
         rollbackMetadata = new ArrayList<SMAMetadata>();
         rollbackMetadata.addAll(deleteMetadata);
-        rollbackMetadata.addAll(buildMetadataList(git.getOriginalMetadata()));
+        rollbackMetadata.addAll(buildMetadataList(originals));
 
         return rollbackMetadata;
     }
 
     public List<SMAMetadata> getRollbackAdditions() throws Exception
     {
+        List<String> additions = new ArrayList<String>();
+
+        for (String added : git.getNewMetadata().keySet())
+        {
+            if (!isBundleFile(added, git.getPrevCommit()))
+            {
+                additions.add(added);
+            }
+        }
+
         rollbackAdditions = new ArrayList<SMAMetadata>();
-        rollbackAdditions.addAll(buildMetadataList(git.getNewMetadata()));
+        rollbackAdditions.addAll(buildMetadataList(additions));
 
         return rollbackAdditions;
     }
 
     /**
-     * Returns a map with the file name mapped to the byte contents of the metadata
+     * Returns a map with the file name mapped to the blob id of the metadata
      *
      * @return deploymentData
      * @throws Exception
      */
-    public Map<String, byte[]> getDeploymentData() throws Exception
+    public Map<String, ObjectId> getDeploymentData() throws Exception
+    {
+        return getData(getPackageMembers(), currentCommit);
+    }
+
+    /**
+     * Returns the deployment split into chunks that are within the Metadata API limits, in the order they should be
+     * deployed. A deployment that is within the limits is a single chunk.
+     *
+     * @return
+     * @throws Exception
+     */
+    public List<SMAChunker.Chunk> getDeploymentChunks() throws Exception
     {
-        if (deployMetadata.isEmpty())
+        SMAChunker chunker = new SMAChunker(chunkMaxFiles, chunkMaxSize);
+        ObjectReader reader = git.newObjectReader();
+
+        try
         {
-            getPackageMembers();
+            for (SMAMetadata metadata : getPackageMembers())
+            {
+                Map<String, ObjectId> files = getData(Collections.singletonList(metadata), currentCommit);
+                long size = 0;
+
+                for (ObjectId blobId : files.values())
+                {
+                    size += reader.getObjectSize(blobId, Constants.OBJ_BLOB);
+                }
+
+                chunker.add(metadata, files, size);
+            }
+        }
+        finally
+        {
+            reader.release();
         }
 
-        return getData(deployMetadata, currentCommit);
+        return chunker.getChunks();
     }
 
-    public Map<String, byte[]> getRollbackData() throws Exception
+    public Map<String, ObjectId> getRollbackData() throws Exception
     {
         if (rollbackMetadata.isEmpty())
         {
@@ -187,26 +517,25 @@ public class SMARunner
     }
 
     /**
-     * Helper method to find the byte[] contents of given metadata
+     * Helper method to find the blob ids of given metadata. The contents are streamed from the repository when the
+     * package is zipped.
      *
      * @param metadatas
      * @param commit
      * @return
      * @throws Exception
      */
-    private Map<String, byte[]> getData(List<SMAMetadata> metadatas, String commit) throws Exception
+    private Map<String, ObjectId> getData(List<SMAMetadata> metadatas, String commit) throws Exception
     {
-        Map<String, byte[]> data = new HashMap<String, byte[]>();
+        Map<String, ObjectId> data = new HashMap<String, ObjectId>();
 
         for (SMAMetadata metadata : metadatas)
         {
-            data.put(metadata.toString(), metadata.getBody());
-
-            if (metadata.hasMetaxml())
+            for (Map.Entry<String, ObjectId> file : getFiles(metadata, commit).entrySet())
             {
-                String metaXml = metadata.toString() + "-meta.xml";
-                String pathToXml = metadata.getPath() + metadata.getFullName() + "-meta.xml";
-                data.put(metaXml, git.getBlob(pathToXml, commit));
+                // Files are packaged below the container of their type, at the same path as in the repository
+                String entry = metadata.getContainer() + "/" + file.getKey().substring(metadata.getPath().length());
+                data.put(entry, file.getValue());
             }
         }
 
@@ -214,26 +543,87 @@ public class SMARunner
     }
 
     /**
-     * Constructs a list of SMAMetadata objects from a Map of files and their byte[] contents
+     * Returns the repository paths and blob ids of the files that make up a component at the given commit
+     *
+     * @param metadata
+     * @param commit
+     * @return
+     * @throws Exception
+     */
+    private Map<String, ObjectId> getFiles(SMAMetadata metadata, String commit) throws Exception
+    {
+        Map<String, ObjectId> files = new TreeMap<String, ObjectId>();
+        String pathToMetadata = metadata.getPath() + metadata.getFullName();
+
+        switch (metadata.getKind())
+        {
+            case BUNDLE:
+                files.putAll(git.listFiles(pathToMetadata + "/", commit));
+                break;
+            case FOLDER:
+                files.put(pathToMetadata + "-meta.xml", git.getBlobId(pathToMetadata + "-meta.xml", commit));
+                break;
+            default:
+                files.put(pathToMetadata, git.getBlobId(pathToMetadata, commit));
+
+                if (metadata.hasMetaxml())
+                {
+                    String pathToXml = pathToMetadata + "-meta.xml";
+                    files.put(pathToXml, git.getBlobId(pathToXml, commit));
+                }
+        }
+
+        return files;
+    }
+
+    /**
+     * Returns whether a file belongs to a bundle that has files at the given commit
+     *
+     * @param repoItem
+     * @param commit
+     * @return
+     * @throws Exception
+     */
+    private boolean isBundleFile(String repoItem, String commit) throws Exception
+    {
+        SMAMetadata metadata = registry.createMetadataObject(repoItem, null);
+
+        return metadata.getKind() == SMAMetadata.Kind.BUNDLE &&
+                !git.listFiles(metadata.getPath() + metadata.getFullName() + "/", commit).isEmpty();
+    }
+
+    /**
+     * Constructs a list of SMAMetadata objects from a collection of files. The contents are loaded from the
+     * repository when the metadata is packaged. A change to a -meta.xml file is folded into its component, since
+     * both are always packaged together.
      *
      * @param repoItems
      * @return
      * @throws Exception
      */
-    private List<SMAMetadata> buildMetadataList(Map<String, byte[]> repoItems) throws Exception
+    private List<SMAMetadata> buildMetadataList(Collection<String> repoItems) throws Exception
     {
-        List<SMAMetadata> thisMetadata = new ArrayList<SMAMetadata>();
+        Map<String, SMAMetadata> thisMetadata = new LinkedHashMap<String, SMAMetadata>();
+        Set<String> components = new TreeSet<String>();
 
-        for (String repoItem : repoItems.keySet())
+        for (String repoItem : repoItems)
         {
-            SMAMetadata mdObject = SMAMetadataTypes.createMetadataObject(repoItem, repoItems.get(repoItem));
-            if (mdObject.isValid())
+            components.add(SMAUtility.checkMeta(repoItem));
+        }
+
+        for (String component : components)
+        {
+            SMAMetadata mdObject = registry.createMetadataObject(component, null);
+            String key = mdObject.getPath() + mdObject.getFullName();
+
+            // Every file of a bundle maps to the same component
+            if (mdObject.isValid() && !thisMetadata.containsKey(key))
             {
-                thisMetadata.add(mdObject);
+                thisMetadata.put(key, mdObject);
             }
         }
 
-        return thisMetadata;
+        return new ArrayList<SMAMetadata>(thisMetadata.values());
     }
 
     /**
@@ -246,10 +636,10 @@ public class SMARunner
     public String[] getSpecifiedTests(String testRegex) throws Exception
     {
         List<String> specifiedTestsList = new ArrayList<String>();
-        List<String> deployApex = SMAMetadata.getApexClasses(deployMetadata);
+        List<String> deployApex = SMAMetadata.getApexClasses(getPackageMembers());
         List<String> allApex = SMAMetadata.getApexClasses(
                 buildMetadataList(
-                        git.getAllMetadata()
+                        git.listAllMetadata().keySet()
                 )
         );
 
@@ -293,6 +683,59 @@ public class SMARunner
         return specifiedTests;
     }
 
+    /**
+     * Returns the git wrapper for the current job
+     *
+     * @return git
+     */
+    public SMAGit getGit()
+    {
+        return git;
+    }
+
+    /**
+     * Releases the resources held for the current job
+     */
+    public void close()
+    {
+        git.close();
+    }
+
+    /**
+     * Returns the deflate compression level of the deployment and rollback packages
+     *
+     * @return
+     */
+    public int getCompressionLevel()
+    {
+        return compressionLevel;
+    }
+
+    /**
+     * Returns the number of threads that compress the deployment and rollback packages
+     *
+     * @return
+     */
+    public int getZipThreads()
+    {
+        return zipThreads;
+    }
+
+    /**
+     * Returns the directory the deployment packages are written to before they are deployed
+     *
+     * @return
+     */
+    public File getPackageDir()
+    {
+        if (!packageDir.exists())
+        {
+            packageDir.mkdirs();
+        }
+
+        return packageDir;
+    }
+
     public String getRollbackLocation()
     {
         File rollbackLocationFile = new File(rollbackLocation);
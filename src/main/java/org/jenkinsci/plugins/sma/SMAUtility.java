@@ -1,16 +1,40 @@
 package org.jenkinsci.plugins.sma;
 
 import hudson.model.BuildListener;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
 import java.util.Collections;
+import java.util.GregorianCalendar;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -24,6 +48,28 @@ public class SMAUtility
 
     private static final Logger LOG = Logger.getLogger(SMAUtility.class.getName());
 
+    // Blobs loaded ahead of the zip writer per blob loader thread, and the largest blob that is loaded ahead
+    private static final int PREFETCH_PER_THREAD = 16;
+    private static final long MAX_PREFETCH_SIZE = 1024 * 1024;
+
+    // Buffer between the zip writer and the channel of a package file
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    // Files in these formats are already compressed and are stored in the package without being deflated again
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<String>(Arrays.asList(
+            "zip", "jar", "gz", "tgz", "bz2", "7z", "png", "jpg", "jpeg", "gif", "webp", "ico", "pdf", "mp3", "mp4",
+            "mov", "woff", "woff2", "docx", "xlsx", "pptx"));
+
+    // Entries of at least MIN_SAMPLE_SIZE bytes whose first SAMPLE_SIZE bytes hold more than MAX_ENTROPY bits of
+    // information per byte are treated as already compressed
+    static final int SAMPLE_SIZE = 8 * 1024;
+    private static final int MIN_SAMPLE_SIZE = 1024;
+    private static final double MAX_ENTROPY = 7.5;
+
+    // Every zip entry gets the same timestamp, the start of the DOS epoch in local time, so that the same contents
+    // always produce the same package
+    private static final long ENTRY_TIME = new GregorianCalendar(1980, Calendar.JANUARY, 1).getTimeInMillis();
+
 
     /**
      * Creates a zipped byte array of the deployment or rollback package
@@ -41,22 +87,13 @@ public class SMAUtility
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         ZipOutputStream zos = new ZipOutputStream(baos);
 
-        ZipEntry manifestFile = new ZipEntry(packageManifest.getName());
-        zos.putNextEntry(manifestFile);
-        zos.write(packageManifest.getPackage().getBytes());
-        zos.closeEntry();
+        writeManifests(zos, packageManifest, destructiveChange);
 
-        ZipEntry destructiveChanges = new ZipEntry(destructiveChange.getName());
-        zos.putNextEntry(destructiveChanges);
-        zos.write(destructiveChange.getPackage().getBytes());
-        zos.closeEntry();
+        SMAZipStats stats = new SMAZipStats();
 
-        for (String metadata : deployData.keySet())
+        for (String metadata : new TreeSet<String>(deployData.keySet()))
         {
-            ZipEntry metadataEntry = new ZipEntry(metadata);
-            zos.putNextEntry(metadataEntry);
-            zos.write(deployData.get(metadata));
-            zos.closeEntry();
+            writeEntry(zos, metadata, deployData.get(metadata), stats);
         }
 
         zos.close();
@@ -65,49 +102,557 @@ public class SMAUtility
     }
 
     /**
-     * Helper to write the zip to a file location
+     * Writes the zipped deployment or rollback package to a file, streaming each blob from the repository through
+     * the file's channel so that the package is never held in memory. With more than one zip thread, the entries are
+     * loaded and deflated across a pool of worker threads by an SMAZipWriter. Entries that are already compressed
+     * are stored rather than deflated again, and how each entry was compressed is recorded in the stats.
      *
-     * @param zipBytes
-     * @param location
+     * @param deployData       The zip entry names mapped to the blob ids of their contents
+     * @param git
+     * @param packageManifest
+     * @param destructiveChange
+     * @param zipFile          The file to write the package to, which is replaced if it exists.
+     * @param compressionLevel The deflate compression level, from 0 to 9, or -1 for the default level.
+     * @param zipThreads       The number of threads that compress entries.
+     * @param stats
+     * @return The zip file.
      * @throws Exception
      */
-    public static void writeZip(ByteArrayOutputStream zipBytes, String location) throws Exception
+    public static File zipPackage(Map<String, ObjectId> deployData,
+                                  SMAGit git,
+                                  SMAPackage packageManifest,
+                                  SMAPackage destructiveChange,
+                                  File zipFile,
+                                  int compressionLevel,
+                                  int zipThreads,
+                                  SMAZipStats stats) throws Exception
     {
-        FileOutputStream fos = new FileOutputStream(location);
-        fos.write(zipBytes.toByteArray());
-        fos.close();
+        FileChannel channel = new FileOutputStream(zipFile).getChannel();
+
+        try
+        {
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), WRITE_BUFFER_SIZE);
+
+            if (zipThreads > 1)
+            {
+                writePackage(new SMAZipWriter(out, compressionLevel, zipThreads, stats), deployData, git,
+                        packageManifest, destructiveChange);
+            }
+            else
+            {
+                ZipOutputStream zos = new ZipOutputStream(out);
+                zos.setLevel(compressionLevel);
+
+                writePackage(zos, deployData, git, packageManifest, destructiveChange, stats);
+                zos.close();
+            }
+        }
+        finally
+        {
+            channel.close();
+        }
+
+        return zipFile;
+    }
+
+    /**
+     * Adds the manifests and the blobs of a package to a parallel zip writer, in the same order as a sequentially
+     * written package. Blobs up to MAX_PREFETCH_SIZE are loaded by the worker thread that compresses them, larger
+     * blobs are streamed by the writer so that they are never held in memory.
+     *
+     * @param writer
+     * @param deployData        The zip entry names mapped to the blob ids of their contents
+     * @param git
+     * @param packageManifest
+     * @param destructiveChange
+     * @throws Exception
+     */
+    private static void writePackage(SMAZipWriter writer,
+                                     Map<String, ObjectId> deployData,
+                                     final SMAGit git,
+                                     SMAPackage packageManifest,
+                                     SMAPackage destructiveChange) throws Exception
+    {
+        ObjectReader reader = git.newObjectReader();
+
+        try
+        {
+            writer.add(packageManifest.getName(), packageManifest.getPackageBytes());
+            writer.add(destructiveChange.getName(), destructiveChange.getPackageBytes());
+
+            for (String metadata : new TreeSet<String>(deployData.keySet()))
+            {
+                final ObjectId blobId = deployData.get(metadata);
+
+                if (reader.getObjectSize(blobId, Constants.OBJ_BLOB) > MAX_PREFETCH_SIZE)
+                {
+                    writer.add(metadata, reader.open(blobId, Constants.OBJ_BLOB));
+                    continue;
+                }
+
+                writer.add(metadata, new Callable<byte[]>()
+                {
+                    public byte[] call() throws Exception
+                    {
+                        ObjectReader workerReader = git.newObjectReader();
+
+                        try
+                        {
+                            return workerReader.open(blobId, Constants.OBJ_BLOB).getCachedBytes(
+                                    (int) MAX_PREFETCH_SIZE);
+                        }
+                        finally
+                        {
+                            workerReader.release();
+                        }
+                    }
+                });
+            }
+        }
+        catch (Exception e)
+        {
+            writer.abort();
+            throw e;
+        }
+        finally
+        {
+            reader.release();
+        }
+
+        writer.close();
     }
 
     /**
-     * Helper to find an existing package.xml file in the provided repository
+     * Reads a zipped package from a file into a byte array of exactly its size, which is the only copy of the
+     * package that is made for a deployment.
      *
-     * @param directory
+     * @param zipFile
      * @return
+     * @throws Exception
      */
-    public static String findPackage(File directory)
+    public static byte[] readZip(File zipFile) throws Exception
     {
-        String location = "";
+        FileChannel channel = new FileInputStream(zipFile).getChannel();
+
+        try
+        {
+            long size = channel.size();
+
+            if (size > Integer.MAX_VALUE)
+            {
+                throw new Exception("[SMA] The package " + zipFile.getPath() + " is too large to deploy: " + size +
+                        " bytes");
+            }
 
-        File[] filesInDir = directory.listFiles();
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
 
-        for (File f : filesInDir)
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0)
+            {
+                // Read until the buffer is full
+            }
+
+            return buffer.array();
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    /**
+     * Writes the manifests and the blobs of a package to a zip. When the repository is configured with more than
+     * one blob loader thread, small blobs are loaded ahead of the writer in parallel batches.
+     *
+     * @param zos
+     * @param deployData        The zip entry names mapped to the blob ids of their contents
+     * @param git
+     * @param packageManifest
+     * @param destructiveChange
+     * @param stats
+     * @throws Exception
+     */
+    private static void writePackage(ZipOutputStream zos,
+                                     Map<String, ObjectId> deployData,
+                                     SMAGit git,
+                                     SMAPackage packageManifest,
+                                     SMAPackage destructiveChange,
+                                     SMAZipStats stats) throws Exception
+    {
+        ObjectReader reader = git.newObjectReader();
+        SMABlobLoader loader = new SMABlobLoader(git, git.getBlobLoaderThreads());
+
+        try
         {
-            if (f.isDirectory())
+            writeManifests(zos, packageManifest, destructiveChange);
+
+            List<String> entries = new ArrayList<String>(new TreeSet<String>(deployData.keySet()));
+            int batchSize = git.getBlobLoaderThreads() > 1 ? git.getBlobLoaderThreads() * PREFETCH_PER_THREAD : 1;
+
+            for (int batchStart = 0; batchStart < entries.size(); batchStart += batchSize)
             {
-                location = findPackage(f);
+                List<String> batch = entries.subList(batchStart, Math.min(batchStart + batchSize, entries.size()));
+                byte[][] prefetched = new byte[batch.size()][];
+
+                if (batchSize > 1)
+                {
+                    List<ObjectId> blobIds = new ArrayList<ObjectId>();
+
+                    for (String metadata : batch)
+                    {
+                        blobIds.add(deployData.get(metadata));
+                    }
+
+                    prefetched = loader.load(blobIds, MAX_PREFETCH_SIZE);
+                }
+
+                for (int i = 0; i < batch.size(); i++)
+                {
+                    if (prefetched[i] != null)
+                    {
+                        writeEntry(zos, batch.get(i), prefetched[i], stats);
+                    }
+                    else
+                    {
+                        writeEntry(zos, batch.get(i), reader.open(deployData.get(batch.get(i))), stats);
+                    }
+                }
             }
-            else if (f.getName().equals("package.xml"))
+        }
+        finally
+        {
+            loader.shutdown();
+            reader.release();
+        }
+    }
+
+    /**
+     * Writes an entry whose contents are in memory, storing it when it is already compressed
+     *
+     * @param zos
+     * @param name
+     * @param data
+     * @param stats
+     * @throws Exception
+     */
+    private static void writeEntry(ZipOutputStream zos, String name, byte[] data, SMAZipStats stats) throws Exception
+    {
+        ZipEntry entry = newEntry(name);
+        long start = System.nanoTime();
+
+        if (!isCompressible(name, data, data.length))
+        {
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            setStored(entry, data.length, crc.getValue());
+
+            zos.putNextEntry(entry);
+            zos.write(data);
+            zos.closeEntry();
+            stats.recordStored(data.length, System.nanoTime() - start);
+        }
+        else
+        {
+            zos.putNextEntry(entry);
+            zos.write(data);
+            zos.closeEntry();
+            stats.recordDeflated(data.length, entry.getCompressedSize(), System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Writes an entry that is streamed from the repository, storing it when it is already compressed. Blobs that
+     * JGit holds in memory are written from their cached bytes. Larger blobs are read through a single stream:
+     * the sample that decides the method is written first and the rest of the stream follows, and a stored entry
+     * is spooled to a temporary file while its checksum is computed.
+     *
+     * @param zos
+     * @param name
+     * @param blob
+     * @param stats
+     * @throws Exception
+     */
+    private static void writeEntry(ZipOutputStream zos, String name, ObjectLoader blob, SMAZipStats stats)
+            throws Exception
+    {
+        if (!blob.isLarge())
+        {
+            writeEntry(zos, name, blob.getCachedBytes(), stats);
+            return;
+        }
+
+        ZipEntry entry = newEntry(name);
+        long start = System.nanoTime();
+        byte[] buffer = new byte[SAMPLE_SIZE];
+        InputStream in = blob.openStream();
+
+        try
+        {
+            // The extension alone decides for compressed formats, so their contents aren't sampled
+            int sampled = isCompressedFormat(name) ? 0 : readSample(in, buffer, SAMPLE_SIZE);
+
+            if (isCompressible(name, buffer, sampled))
             {
-                location = f.getPath();
+                zos.putNextEntry(entry);
+                copy(buffer, sampled, in, zos, null);
+                zos.closeEntry();
+                stats.recordDeflated(entry.getSize(), entry.getCompressedSize(), System.nanoTime() - start);
+                return;
             }
 
-            if (!location.isEmpty())
+            File spool = File.createTempFile("sma-entry", ".tmp");
+
+            try
             {
-                break;
+                CRC32 crc = new CRC32();
+                OutputStream spoolOut = new BufferedOutputStream(new FileOutputStream(spool));
+                long size;
+
+                try
+                {
+                    size = copy(buffer, sampled, in, spoolOut, crc);
+                }
+                finally
+                {
+                    spoolOut.close();
+                }
+
+                setStored(entry, size, crc.getValue());
+                zos.putNextEntry(entry);
+
+                InputStream spoolIn = new FileInputStream(spool);
+
+                try
+                {
+                    copy(buffer, 0, spoolIn, zos, null);
+                }
+                finally
+                {
+                    spoolIn.close();
+                }
+
+                zos.closeEntry();
+                stats.recordStored(size, System.nanoTime() - start);
             }
+            finally
+            {
+                spool.delete();
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Copies the bytes already read into a buffer followed by the rest of a stream
+     *
+     * @param buffer
+     * @param buffered The number of bytes at the start of the buffer to copy first.
+     * @param in
+     * @param out
+     * @param crc      Updated with the bytes that are copied, or null.
+     * @return The number of bytes copied.
+     * @throws Exception
+     */
+    static long copy(byte[] buffer, int buffered, InputStream in, OutputStream out, CRC32 crc) throws Exception
+    {
+        long copied = 0;
+        int read = buffered;
+
+        do
+        {
+            if (crc != null)
+            {
+                crc.update(buffer, 0, read);
+            }
+
+            out.write(buffer, 0, read);
+            copied += read;
+        }
+        while ((read = in.read(buffer)) >= 0);
+
+        return copied;
+    }
+
+    private static void setStored(ZipEntry entry, long size, long crc)
+    {
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(size);
+        entry.setCompressedSize(size);
+        entry.setCrc(crc);
+    }
+
+    /**
+     * Returns whether deflating an entry is worthwhile. Entries with the extension of a compressed format are not,
+     * and neither are entries whose contents look random, like static resources that hold archives or images.
+     *
+     * @param name   The name of the entry.
+     * @param sample The contents of the entry, or the start of them.
+     * @param length The number of bytes of the sample to look at.
+     * @return
+     */
+    public static boolean isCompressible(String name, byte[] sample, int length)
+    {
+        if (isCompressedFormat(name))
+        {
+            return false;
+        }
+
+        return length < MIN_SAMPLE_SIZE || getEntropy(sample, Math.min(length, SAMPLE_SIZE)) <= MAX_ENTROPY;
+    }
+
+    /**
+     * Returns whether an entry has the extension of a compressed format, which decides how it is compressed without
+     * looking at its contents.
+     *
+     * @param name
+     * @return
+     */
+    public static boolean isCompressedFormat(String name)
+    {
+        String fileName = name.substring(name.lastIndexOf('/') + 1);
+        String extension = fileName.substring(fileName.lastIndexOf('.') + 1).toLowerCase(Locale.ENGLISH);
+
+        return fileName.indexOf('.') >= 0 && COMPRESSED_EXTENSIONS.contains(extension);
+    }
+
+    /**
+     * Reads up to length bytes from the start of a stream, for sampling its contents
+     *
+     * @param in
+     * @param buffer
+     * @param length
+     * @return The number of bytes read.
+     * @throws Exception
+     */
+    static int readSample(InputStream in, byte[] buffer, int length) throws Exception
+    {
+        int sampled = 0;
+        int read;
+
+        while (sampled < length && (read = in.read(buffer, sampled, length - sampled)) >= 0)
+        {
+            sampled += read;
+        }
+
+        return sampled;
+    }
+
+    /**
+     * Returns the Shannon entropy in bits per byte of the first bytes of a sample
+     *
+     * @param sample
+     * @param length
+     * @return
+     */
+    private static double getEntropy(byte[] sample, int length)
+    {
+        int[] counts = new int[256];
+
+        for (int i = 0; i < length; i++)
+        {
+            counts[sample[i] & 0xff]++;
         }
 
-        return location;
+        double entropy = 0;
+
+        for (int count : counts)
+        {
+            if (count > 0)
+            {
+                double p = (double) count / length;
+                entropy -= p * Math.log(p);
+            }
+        }
+
+        return entropy / Math.log(2);
+    }
+
+    /**
+     * Returns a hash that identifies the contents of a deployment or rollback package. The hash only depends on the
+     * manifests and on the names and blob ids of the entries, so it is known before the package is zipped.
+     *
+     * @param deployData The zip entry names mapped to the blob ids of their contents
+     * @param packageManifest
+     * @param destructiveChange
+     * @return
+     * @throws Exception
+     */
+    public static String hashPackage(Map<String, ObjectId> deployData,
+                                     SMAPackage packageManifest,
+                                     SMAPackage destructiveChange) throws Exception
+    {
+        MessageDigest md = Constants.newMessageDigest();
+        ObjectInserter.Formatter formatter = new ObjectInserter.Formatter();
+
+        hashEntry(md, packageManifest.getName(),
+                formatter.idFor(Constants.OBJ_BLOB, packageManifest.getPackageBytes()));
+        hashEntry(md, destructiveChange.getName(),
+                formatter.idFor(Constants.OBJ_BLOB, destructiveChange.getPackageBytes()));
+
+        for (Map.Entry<String, ObjectId> entry : new TreeMap<String, ObjectId>(deployData).entrySet())
+        {
+            hashEntry(md, entry.getKey(), entry.getValue());
+        }
+
+        return ObjectId.fromRaw(md.digest()).name();
+    }
+
+    private static void hashEntry(MessageDigest md, String name, ObjectId blobId)
+    {
+        md.update(Constants.encode(blobId.name() + " " + name + "\n"));
+    }
+
+    /**
+     * Creates a zip entry with the fixed entry timestamp
+     *
+     * @param name
+     * @return
+     */
+    private static ZipEntry newEntry(String name)
+    {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setTime(ENTRY_TIME);
+
+        return entry;
+    }
+
+    /**
+     * Writes the package and destructiveChanges manifests to the zip
+     *
+     * @param zos
+     * @param packageManifest
+     * @param destructiveChange
+     * @throws Exception
+     */
+    private static void writeManifests(ZipOutputStream zos,
+                                       SMAPackage packageManifest,
+                                       SMAPackage destructiveChange) throws Exception
+    {
+        ZipEntry manifestFile = newEntry(packageManifest.getName());
+        zos.putNextEntry(manifestFile);
+        packageManifest.writeTo(zos);
+        zos.closeEntry();
+
+        ZipEntry destructiveChanges = newEntry(destructiveChange.getName());
+        zos.putNextEntry(destructiveChanges);
+        destructiveChange.writeTo(zos);
+        zos.closeEntry();
+    }
+
+    /**
+     * Helper to write the zip to a file location
+     *
+     * @param zipBytes
+     * @param location
+     * @throws Exception
+     */
+    public static void writeZip(ByteArrayOutputStream zipBytes, String location) throws Exception
+    {
+        FileOutputStream fos = new FileOutputStream(location);
+        fos.write(zipBytes.toByteArray());
+        fos.close();
     }
 
     /**
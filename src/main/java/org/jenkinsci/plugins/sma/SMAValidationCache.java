@@ -0,0 +1,165 @@
+package org.jenkinsci.plugins.sma;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Remembers which packages were successfully validated against a Salesforce organization, so that validating the
+ * same package with the same tests again can be skipped.
+ *
+ */
+public class SMAValidationCache
+{
+    private static final Object LOCK = new Object();
+    private static final int MAX_ENTRIES = 500;
+
+    private final File cacheFile;
+
+    /**
+     * Creates the SMAValidationCache for an organization
+     *
+     * @param cacheDir The directory holding the validation caches of all organizations.
+     * @param username The user that validates against the organization.
+     * @param server   The login server of the organization.
+     */
+    public SMAValidationCache(File cacheDir, String username, String server)
+    {
+        this.cacheFile = new File(cacheDir, SMALedger.getOrgKey(username, server) + ".validated");
+    }
+
+    /**
+     * Returns the key of a validation of a package with the given tests.
+     *
+     * @param packageHash    The hash of the package, see SMAUtility.hashPackage.
+     * @param testLevel
+     * @param specifiedTests The tests run by the validation, or null.
+     * @return
+     */
+    public static String getKey(String packageHash, String testLevel, String[] specifiedTests)
+    {
+        StringBuilder validation = new StringBuilder(packageHash).append(" ").append(testLevel);
+
+        if (specifiedTests != null)
+        {
+            String[] tests = specifiedTests.clone();
+            Arrays.sort(tests);
+
+            for (String test : tests)
+            {
+                validation.append(" ").append(test);
+            }
+        }
+
+        MessageDigest md = Constants.newMessageDigest();
+        md.update(Constants.encode(validation.toString()));
+
+        return ObjectId.fromRaw(md.digest()).name();
+    }
+
+    /**
+     * Returns whether a validation with this key already succeeded against the organization.
+     *
+     * @param key
+     * @return
+     * @throws IOException
+     */
+    public boolean isValidated(String key) throws IOException
+    {
+        synchronized (LOCK)
+        {
+            return read().contains(key);
+        }
+    }
+
+    /**
+     * Records a successful validation. Only the most recent validations are kept.
+     *
+     * @param key
+     * @throws IOException
+     */
+    public void record(String key) throws IOException
+    {
+        synchronized (LOCK)
+        {
+            List<String> keys = read();
+            keys.remove(key);
+            keys.add(key);
+
+            write(keys.subList(Math.max(0, keys.size() - MAX_ENTRIES), keys.size()));
+        }
+    }
+
+    public File getCacheFile()
+    {
+        return cacheFile;
+    }
+
+    private List<String> read() throws IOException
+    {
+        List<String> keys = new ArrayList<String>();
+
+        if (!cacheFile.isFile())
+        {
+            return keys;
+        }
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(cacheFile), "UTF-8"));
+
+        try
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                if (ObjectId.isId(line))
+                {
+                    keys.add(line);
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+
+        return keys;
+    }
+
+    private void write(List<String> keys) throws IOException
+    {
+        File cacheDir = cacheFile.getParentFile();
+
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs())
+        {
+            throw new IOException("Could not create validation cache directory " + cacheDir);
+        }
+
+        File tmp = File.createTempFile(cacheFile.getName(), ".tmp", cacheDir);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+
+        try
+        {
+            for (String key : keys)
+            {
+                writer.write(key + "\n");
+            }
+        }
+        finally
+        {
+            writer.close();
+        }
+
+        cacheFile.delete();
+
+        if (!tmp.renameTo(cacheFile))
+        {
+            tmp.delete();
+            throw new IOException("Could not write validation cache " + cacheFile);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package org.jenkinsci.plugins.sma;
+
+import org.eclipse.jgit.storage.file.WindowCacheConfig;
+
+import java.util.logging.Logger;
+
+/**
+ * Applies the JVM wide JGit WindowCache configuration.
+ *
+ * The window cache is shared by every repository in the JVM, so the configuration is only installed when it differs
+ * from the one installed last. Settings that JGit would refuse are clamped to the nearest value it accepts.
+ *
+ */
+public class SMAWindowCache
+{
+    private static final Logger LOG = Logger.getLogger(SMAWindowCache.class.getName());
+
+    // JGit refuses windows smaller than 4 KB or that aren't a power of 2
+    public static final int MIN_WINDOW_SIZE = 4 * 1024;
+    public static final int MAX_WINDOW_SIZE = 1024 * 1024 * 1024;
+
+    // Below this nearly every blob would be streamed from the pack instead of being inflated in memory
+    public static final int MIN_STREAM_FILE_THRESHOLD = 64 * 1024;
+
+    private static String installed;
+
+    /**
+     * Installs the window cache configuration unless it is already in effect. A window size that JGit would refuse
+     * is rounded up to the next power of 2, a limit below the window size is raised to it, and a stream file
+     * threshold below MIN_STREAM_FILE_THRESHOLD is raised to that.
+     *
+     * @param packedGitMMAP        Whether pack files are read through memory mapped windows.
+     * @param packedGitWindowSize  The size in bytes of a single pack window.
+     * @param packedGitLimit       The total number of bytes of pack windows to keep cached.
+     * @param streamFileThreshold  Objects larger than this many bytes are streamed rather than fully inflated.
+     * @return Whether the configuration was installed by this call.
+     */
+    public static synchronized boolean configure(boolean packedGitMMAP,
+                                                 int packedGitWindowSize,
+                                                 long packedGitLimit,
+                                                 int streamFileThreshold)
+    {
+        packedGitWindowSize = clampWindowSize(packedGitWindowSize);
+        packedGitLimit = clampLimit(packedGitLimit, packedGitWindowSize);
+        streamFileThreshold = clampStreamFileThreshold(streamFileThreshold);
+
+        String requested = "mmap=" + packedGitMMAP + ", windowSize=" + packedGitWindowSize + ", limit=" +
+                packedGitLimit + ", streamFileThreshold=" + streamFileThreshold;
+
+        if (requested.equals(installed))
+        {
+            return false;
+        }
+
+        WindowCacheConfig config = new WindowCacheConfig();
+        config.setPackedGitMMAP(packedGitMMAP);
+        config.setPackedGitWindowSize(packedGitWindowSize);
+        config.setPackedGitLimit(packedGitLimit);
+        config.setStreamFileThreshold(streamFileThreshold);
+        config.install();
+
+        installed = requested;
+        LOG.info("Installed JGit window cache configuration: " + requested);
+
+        return true;
+    }
+
+    /**
+     * Returns the nearest window size JGit accepts: a power of 2 between MIN_WINDOW_SIZE and MAX_WINDOW_SIZE.
+     *
+     * @param packedGitWindowSize
+     * @return
+     */
+    public static int clampWindowSize(int packedGitWindowSize)
+    {
+        if (packedGitWindowSize <= MIN_WINDOW_SIZE)
+        {
+            return MIN_WINDOW_SIZE;
+        }
+
+        if (packedGitWindowSize >= MAX_WINDOW_SIZE)
+        {
+            return MAX_WINDOW_SIZE;
+        }
+
+        int windowSize = Integer.highestOneBit(packedGitWindowSize);
+
+        return windowSize == packedGitWindowSize ? windowSize : windowSize << 1;
+    }
+
+    /**
+     * Returns the cache limit raised to hold at least one window of the given size.
+     *
+     * @param packedGitLimit
+     * @param packedGitWindowSize
+     * @return
+     */
+    public static long clampLimit(long packedGitLimit, int packedGitWindowSize)
+    {
+        return Math.max(packedGitLimit, packedGitWindowSize);
+    }
+
+    /**
+     * Returns the stream file threshold raised to at least MIN_STREAM_FILE_THRESHOLD.
+     *
+     * @param streamFileThreshold
+     * @return
+     */
+    public static int clampStreamFileThreshold(int streamFileThreshold)
+    {
+        return Math.max(streamFileThreshold, MIN_STREAM_FILE_THRESHOLD);
+    }
+
+    /**
+     * Returns the window cache configuration currently installed by SMA, or null if none was installed.
+     *
+     * @return
+     */
+    public static synchronized String getInstalled()
+    {
+        return installed;
+    }
+}
@@ -0,0 +1,158 @@
+package org.jenkinsci.plugins.sma;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts how the entries of the packages built for a job were compressed. Safe to update from the threads of a
+ * parallel zip writer.
+ *
+ * Storing an entry saves the deflate time it would have taken, which is estimated from the throughput of the entries
+ * that were deflated, and saves the bytes by which deflating would have grown it where that was measured.
+ *
+ */
+public class SMAZipStats
+{
+    private final AtomicLong deflatedEntries = new AtomicLong();
+    private final AtomicLong deflatedBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong deflateNanos = new AtomicLong();
+    private final AtomicLong storedEntries = new AtomicLong();
+    private final AtomicLong storedBytes = new AtomicLong();
+    private final AtomicLong storeNanos = new AtomicLong();
+    private final AtomicLong skippedBytes = new AtomicLong();
+    private final AtomicLong growthAvoided = new AtomicLong();
+
+    /**
+     * Records an entry that was deflated
+     *
+     * @param size           The uncompressed size of the entry.
+     * @param compressedSize The size of the entry in the zip.
+     * @param nanos          The time spent deflating the entry.
+     */
+    public void recordDeflated(long size, long compressedSize, long nanos)
+    {
+        deflatedEntries.incrementAndGet();
+        deflatedBytes.addAndGet(size);
+        compressedBytes.addAndGet(compressedSize);
+        deflateNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Records an entry that was stored without trying to deflate it
+     *
+     * @param size
+     * @param nanos The time spent writing the entry.
+     */
+    public void recordStored(long size, long nanos)
+    {
+        storedEntries.incrementAndGet();
+        storedBytes.addAndGet(size);
+        storeNanos.addAndGet(nanos);
+        skippedBytes.addAndGet(size);
+    }
+
+    /**
+     * Records an entry that was stored because deflating it did not make it smaller
+     *
+     * @param size
+     * @param deflatedSize The size the entry deflated to.
+     * @param nanos        The time spent deflating and writing the entry.
+     */
+    public void recordStored(long size, long deflatedSize, long nanos)
+    {
+        storedEntries.incrementAndGet();
+        storedBytes.addAndGet(size);
+        storeNanos.addAndGet(nanos);
+        growthAvoided.addAndGet(deflatedSize - size);
+    }
+
+    public long getDeflatedEntries()
+    {
+        return deflatedEntries.get();
+    }
+
+    /**
+     * Returns the number of bytes that deflating the entries saved in the zips
+     *
+     * @return
+     */
+    public long getSavedBytes()
+    {
+        return deflatedBytes.get() - compressedBytes.get();
+    }
+
+    public long getDeflateMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(deflateNanos.get());
+    }
+
+    public long getStoredEntries()
+    {
+        return storedEntries.get();
+    }
+
+    /**
+     * Returns the number of bytes that were stored without being deflated again
+     *
+     * @return
+     */
+    public long getStoredBytes()
+    {
+        return storedBytes.get();
+    }
+
+    public long getStoreMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(storeNanos.get());
+    }
+
+    /**
+     * Returns the number of bytes by which deflating would have grown the entries that were stored instead
+     *
+     * @return
+     */
+    public long getStoredSavedBytes()
+    {
+        return growthAvoided.get();
+    }
+
+    /**
+     * Returns an estimate of the time that deflating the entries stored without trying would have taken, at the
+     * rate the deflated entries were compressed. Zero until an entry has been deflated.
+     *
+     * @return
+     */
+    public long getAvoidedDeflateMillis()
+    {
+        long deflated = deflatedBytes.get();
+
+        if (deflated == 0)
+        {
+            return 0;
+        }
+
+        return TimeUnit.NANOSECONDS.toMillis((long) ((double) skippedBytes.get() * deflateNanos.get() / deflated));
+    }
+
+    /**
+     * Returns a formatted string of the compression statistics for printing to the Jenkins console
+     *
+     * @return
+     */
+    public String getStatistics()
+    {
+        StringBuilder buf = new StringBuilder("Package compression");
+
+        buf.append(" -- deflated: ").append(getDeflatedEntries()).append(" entries, ");
+        buf.append(deflatedBytes.get() / 1024).append(" KB to ").append(compressedBytes.get() / 1024).append(" KB");
+        buf.append(" (").append(getSavedBytes() / 1024).append(" KB saved)");
+        buf.append(" in ").append(getDeflateMillis()).append(" ms");
+        buf.append(", stored: ").append(getStoredEntries()).append(" entries, ");
+        buf.append(getStoredBytes() / 1024).append(" KB in ").append(getStoreMillis()).append(" ms");
+        buf.append(" (").append(getStoredSavedBytes() / 1024).append(" KB and about ");
+        buf.append(getAvoidedDeflateMillis()).append(" ms of deflating saved)");
+
+        return buf.toString();
+    }
+}
@@ -0,0 +1,548 @@
+package org.jenkinsci.plugins.sma;
+
+import org.eclipse.jgit.lib.ObjectLoader;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a zip archive whose entries are loaded and deflated across a pool of worker threads. Entries that are
+ * already compressed, or that deflating would make larger, are stored. Blobs too large to load whole are streamed
+ * on the calling thread instead, so only small entries are ever held in memory.
+ * Entries are written in the order they were added, with the same timestamp as the packages built by SMAUtility, so
+ * the same entries always produce the same archive.
+ *
+ */
+public class SMAZipWriter
+{
+    private static final Logger LOG = Logger.getLogger(SMAZipWriter.class.getName());
+
+    // Entries compressed ahead of the writer per worker thread
+    private static final int PENDING_PER_THREAD = 4;
+
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int DATA_DESCRIPTOR = 0x08074b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final int VERSION = 20;
+    private static final int UTF8_NAMES = 0x0800;
+    private static final int HAS_DATA_DESCRIPTOR = 0x0008;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+    private static final int MAX_ENTRIES = 0xffff;
+    private static final long MAX_OFFSET = 0xffffffffL;
+
+    // January 1st 1980 at midnight in MS-DOS date and time format, the same as SMAUtility's entry timestamp
+    private static final int DOS_TIME = 0;
+    private static final int DOS_DATE = (1 << 5) | 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 8192;
+
+    private final OutputStream out;
+    private final int level;
+    private final int threads;
+    private final SMAZipStats stats;
+    private final ExecutorService pool;
+    private final Deque<Future<Entry>> pending = new ArrayDeque<Future<Entry>>();
+    private final List<Entry> written = new ArrayList<Entry>();
+    private long offset;
+
+    /**
+     * Creates an SMAZipWriter
+     *
+     * @param out     The stream the archive is written to, which is closed with the writer.
+     * @param level   The deflate compression level, from 0 to 9, or -1 for the default level.
+     * @param threads The number of worker threads.
+     */
+    public SMAZipWriter(OutputStream out, int level, int threads)
+    {
+        this(out, level, threads, new SMAZipStats());
+    }
+
+    /**
+     * Creates an SMAZipWriter that records how each entry was compressed
+     *
+     * @param out     The stream the archive is written to, which is closed with the writer.
+     * @param level   The deflate compression level, from 0 to 9, or -1 for the default level.
+     * @param threads The number of worker threads.
+     * @param stats
+     */
+    public SMAZipWriter(OutputStream out, int level, int threads, SMAZipStats stats)
+    {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+        {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+
+        this.out = out;
+        this.level = level;
+        this.threads = Math.max(threads, 1);
+        this.stats = stats;
+
+        LOG.fine("Starting " + this.threads + " zip compression threads");
+
+        pool = Executors.newFixedThreadPool(this.threads, new SMADaemonThreadFactory("SMA zip writer"));
+    }
+
+    /**
+     * Adds an entry to the archive
+     *
+     * @param name
+     * @param data
+     * @throws Exception
+     */
+    public void add(String name, final byte[] data) throws Exception
+    {
+        add(name, new Callable<byte[]>()
+        {
+            public byte[] call() throws Exception
+            {
+                return data;
+            }
+        });
+    }
+
+    /**
+     * Adds an entry whose contents are loaded by a worker thread. Blocks while too many entries are waiting to be
+     * written.
+     *
+     * @param name
+     * @param contents
+     * @throws Exception
+     */
+    public void add(final String name, final Callable<byte[]> contents) throws Exception
+    {
+        checkEntries();
+
+        pending.add(pool.submit(new Callable<Entry>()
+        {
+            public Entry call() throws Exception
+            {
+                return compress(name, contents.call(), level, stats);
+            }
+        }));
+
+        while (pending.size() > threads * PENDING_PER_THREAD)
+        {
+            writeNext();
+        }
+    }
+
+    /**
+     * Adds an entry that is streamed from the repository on the calling thread, once the entries added before it
+     * have been written. A deflated entry is followed by a data descriptor that holds its checksum and sizes, and an
+     * entry that is stored is spooled to a temporary file while its checksum is computed, so the blob is only read
+     * once either way.
+     *
+     * @param name
+     * @param blob
+     * @throws Exception
+     */
+    public void add(String name, ObjectLoader blob) throws Exception
+    {
+        checkEntries();
+
+        while (!pending.isEmpty())
+        {
+            writeNext();
+        }
+
+        byte[] buffer = new byte[Math.max(SMAUtility.SAMPLE_SIZE, BUFFER_SIZE)];
+        InputStream in = blob.openStream();
+
+        try
+        {
+            // The extension alone decides for compressed formats, so their contents aren't sampled
+            int sampled = SMAUtility.isCompressedFormat(name) ? 0 :
+                    SMAUtility.readSample(in, buffer, SMAUtility.SAMPLE_SIZE);
+
+            if (SMAUtility.isCompressible(name, buffer, sampled))
+            {
+                writeDeflated(name.getBytes(UTF8), buffer, sampled, in);
+            }
+            else
+            {
+                writeStored(name.getBytes(UTF8), buffer, sampled, in);
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the remaining entries and the central directory, and closes the stream.
+     *
+     * @throws Exception
+     */
+    public void close() throws Exception
+    {
+        try
+        {
+            while (!pending.isEmpty())
+            {
+                writeNext();
+            }
+
+            long centralDirectory = offset;
+
+            for (Entry entry : written)
+            {
+                writeCentralHeader(entry);
+            }
+
+            long centralDirectorySize = offset - centralDirectory;
+
+            writeInt(END_OF_CENTRAL_DIRECTORY);
+            writeShort(0);
+            writeShort(0);
+            writeShort(written.size());
+            writeShort(written.size());
+            writeInt((int) centralDirectorySize);
+            writeInt((int) centralDirectory);
+            writeShort(0);
+            checkOffset();
+        }
+        finally
+        {
+            pool.shutdownNow();
+            out.close();
+        }
+    }
+
+    /**
+     * Stops the worker threads without completing the archive.
+     */
+    public void abort()
+    {
+        pool.shutdownNow();
+    }
+
+    private void writeNext() throws Exception
+    {
+        Entry entry;
+
+        try
+        {
+            entry = pending.remove().get();
+        }
+        catch (ExecutionException e)
+        {
+            abort();
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+
+        writeLocalHeader(entry);
+        write(entry.data, 0, entry.data.length);
+        checkOffset();
+
+        // Only the header fields are needed for the central directory
+        entry.data = null;
+        written.add(entry);
+    }
+
+    /**
+     * Deflates the rest of a stream into the archive, starting with the bytes already read into the buffer
+     *
+     * @param name
+     * @param buffer
+     * @param buffered
+     * @param in
+     * @throws Exception
+     */
+    private void writeDeflated(byte[] name, byte[] buffer, int buffered, InputStream in) throws Exception
+    {
+        long start = System.nanoTime();
+        Entry entry = new Entry(name, DEFLATED, UTF8_NAMES | HAS_DATA_DESCRIPTOR);
+        writeLocalHeader(entry);
+
+        long dataStart = offset;
+        CRC32 crc = new CRC32();
+        Deflater deflater = new Deflater(level, true);
+        byte[] output = new byte[BUFFER_SIZE];
+
+        try
+        {
+            int read = buffered;
+
+            do
+            {
+                crc.update(buffer, 0, read);
+                entry.size += read;
+                deflater.setInput(buffer, 0, read);
+
+                while (!deflater.needsInput())
+                {
+                    write(output, 0, deflater.deflate(output));
+                }
+            }
+            while ((read = in.read(buffer)) >= 0);
+
+            deflater.finish();
+
+            while (!deflater.finished())
+            {
+                write(output, 0, deflater.deflate(output));
+            }
+        }
+        finally
+        {
+            deflater.end();
+        }
+
+        entry.crc = crc.getValue();
+        entry.compressedSize = offset - dataStart;
+
+        writeInt(DATA_DESCRIPTOR);
+        writeInt((int) entry.crc);
+        writeInt((int) entry.compressedSize);
+        writeInt((int) entry.size);
+        checkOffset();
+
+        stats.recordDeflated(entry.size, entry.compressedSize, System.nanoTime() - start);
+        written.add(entry);
+    }
+
+    /**
+     * Stores the rest of a stream in the archive, starting with the bytes already read into the buffer. The
+     * contents are spooled to a temporary file first, because a stored entry needs its checksum in its header.
+     *
+     * @param name
+     * @param buffer
+     * @param buffered
+     * @param in
+     * @throws Exception
+     */
+    private void writeStored(byte[] name, byte[] buffer, int buffered, InputStream in) throws Exception
+    {
+        long start = System.nanoTime();
+        Entry entry = new Entry(name, STORED, UTF8_NAMES);
+        CRC32 crc = new CRC32();
+        File spool = File.createTempFile("sma-entry", ".tmp");
+
+        try
+        {
+            OutputStream spoolOut = new BufferedOutputStream(new FileOutputStream(spool));
+
+            try
+            {
+                entry.size = SMAUtility.copy(buffer, buffered, in, spoolOut, crc);
+            }
+            finally
+            {
+                spoolOut.close();
+            }
+
+            entry.crc = crc.getValue();
+            entry.compressedSize = entry.size;
+            writeLocalHeader(entry);
+
+            InputStream spoolIn = new FileInputStream(spool);
+
+            try
+            {
+                int read;
+                while ((read = spoolIn.read(buffer)) >= 0)
+                {
+                    write(buffer, 0, read);
+                }
+            }
+            finally
+            {
+                spoolIn.close();
+            }
+
+            checkOffset();
+        }
+        finally
+        {
+            spool.delete();
+        }
+
+        stats.recordStored(entry.size, System.nanoTime() - start);
+        written.add(entry);
+    }
+
+    private void writeLocalHeader(Entry entry) throws IOException
+    {
+        entry.offset = offset;
+
+        writeInt(LOCAL_HEADER);
+        writeShort(VERSION);
+        writeShort(entry.flags);
+        writeShort(entry.method);
+        writeShort(DOS_TIME);
+        writeShort(DOS_DATE);
+        writeInt((int) entry.crc);
+        writeInt((int) entry.compressedSize);
+        writeInt((int) entry.size);
+        writeShort(entry.name.length);
+        writeShort(0);
+        write(entry.name);
+    }
+
+    private void checkEntries() throws IOException
+    {
+        if (written.size() + pending.size() >= MAX_ENTRIES)
+        {
+            throw new IOException("[SMA] A zip archive can't hold more than " + MAX_ENTRIES + " entries");
+        }
+    }
+
+    private void writeCentralHeader(Entry entry) throws IOException
+    {
+        writeInt(CENTRAL_HEADER);
+        writeShort(VERSION);
+        writeShort(VERSION);
+        writeShort(entry.flags);
+        writeShort(entry.method);
+        writeShort(DOS_TIME);
+        writeShort(DOS_DATE);
+        writeInt((int) entry.crc);
+        writeInt((int) entry.compressedSize);
+        writeInt((int) entry.size);
+        writeShort(entry.name.length);
+        writeShort(0);
+        writeShort(0);
+        writeShort(0);
+        writeShort(0);
+        writeInt(0);
+        writeInt((int) entry.offset);
+        write(entry.name);
+    }
+
+    private void checkOffset() throws IOException
+    {
+        if (offset > MAX_OFFSET)
+        {
+            throw new IOException("[SMA] The zip archive is larger than 4 GB");
+        }
+    }
+
+    private void writeShort(int value) throws IOException
+    {
+        out.write(value & 0xff);
+        out.write((value >>> 8) & 0xff);
+        offset += 2;
+    }
+
+    private void writeInt(int value) throws IOException
+    {
+        writeShort(value & 0xffff);
+        writeShort((value >>> 16) & 0xffff);
+    }
+
+    private void write(byte[] bytes) throws IOException
+    {
+        write(bytes, 0, bytes.length);
+    }
+
+    private void write(byte[] bytes, int off, int length) throws IOException
+    {
+        out.write(bytes, off, length);
+        offset += length;
+    }
+
+    /**
+     * Compresses the contents of an entry. Contents that SMAUtility considers already compressed are stored, as are
+     * contents that deflate to at least their own size.
+     *
+     * @param name
+     * @param data
+     * @param level
+     * @param stats
+     * @return
+     */
+    static Entry compress(String name, byte[] data, int level, SMAZipStats stats)
+    {
+        long start = System.nanoTime();
+        CRC32 crc = new CRC32();
+        crc.update(data);
+
+        byte[] nameBytes = name.getBytes(UTF8);
+
+        if (!SMAUtility.isCompressible(name, data, data.length))
+        {
+            stats.recordStored(data.length, System.nanoTime() - start);
+            return new Entry(nameBytes, STORED, crc.getValue(), data.length, data);
+        }
+
+        Deflater deflater = new Deflater(level, true);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(data.length / 2, 64));
+        byte[] buffer = new byte[BUFFER_SIZE];
+
+        try
+        {
+            deflater.setInput(data);
+            deflater.finish();
+
+            while (!deflater.finished())
+            {
+                compressed.write(buffer, 0, deflater.deflate(buffer));
+            }
+        }
+        finally
+        {
+            deflater.end();
+        }
+
+        if (compressed.size() >= data.length)
+        {
+            stats.recordStored(data.length, compressed.size(), System.nanoTime() - start);
+            return new Entry(nameBytes, STORED, crc.getValue(), data.length, data);
+        }
+
+        stats.recordDeflated(data.length, compressed.size(), System.nanoTime() - start);
+
+        return new Entry(nameBytes, DEFLATED, crc.getValue(), data.length, compressed.toByteArray());
+    }
+
+    static class Entry
+    {
+        private final byte[] name;
+        private final int method;
+        private final int flags;
+        private long crc;
+        private long size;
+        private long compressedSize;
+        private byte[] data;
+        private long offset;
+
+        Entry(byte[] name, int method, int flags)
+        {
+            this.name = name;
+            this.method = method;
+            this.flags = flags;
+        }
+
+        Entry(byte[] name, int method, long crc, long size, byte[] data)
+        {
+            this(name, method, UTF8_NAMES);
+            this.crc = crc;
+            this.size = size;
+            this.compressedSize = data.length;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+<?xml version="1.0" encoding="UTF-8"?>
+<!--
+    Generates SMAMetadataTable.java from salesforceMetadata.xml so that the metadata types are compiled into the
+    plugin instead of being parsed when the first build runs.
+-->
+<xsl:stylesheet version="1.0" xmlns:xsl="http://www.w3.org/1999/XSL/Transform">
+    <xsl:output method="text" encoding="UTF-8"/>
+
+    <xsl:template match="/version">
+        <xsl:text>package org.jenkinsci.plugins.sma;
+
+/**
+ * Salesforce Metadata API types compiled from salesforceMetadata.xml.
+ *
+ * Generated by src/main/xslt/SMAMetadataTable.xsl during the generate-sources phase. Do not edit.
+ *
+ */
+final class SMAMetadataTable
+{
+    static final String API_VERSION = "</xsl:text>
+        <xsl:value-of select="normalize-space(@API)"/>
+        <xsl:text>";
+
+    static final SMAMetadataType[] TYPES = {
+</xsl:text>
+        <xsl:apply-templates select="extension"/>
+        <xsl:text>    };
+
+    private SMAMetadataTable()
+    {
+    }
+}
+</xsl:text>
+    </xsl:template>
+
+    <xsl:template match="extension">
+        <xsl:text>            new SMAMetadataType("</xsl:text>
+        <xsl:value-of select="normalize-space(@name)"/>
+        <xsl:text>", "</xsl:text>
+        <xsl:value-of select="normalize-space(metadata)"/>
+        <xsl:text>", "</xsl:text>
+        <xsl:value-of select="normalize-space(container)"/>
+        <xsl:text>", </xsl:text>
+        <xsl:value-of select="normalize-space(destructible) = 'true'"/>
+        <xsl:text>, </xsl:text>
+        <xsl:value-of select="normalize-space(metaxml) = 'true'"/>
+        <xsl:text>, SMAMetadataType.Layout.</xsl:text>
+        <xsl:choose>
+            <xsl:when test="normalize-space(layout) = 'folder'">FOLDER</xsl:when>
+            <xsl:when test="normalize-space(layout) = 'bundle'">BUNDLE</xsl:when>
+            <xsl:otherwise>FLAT</xsl:otherwise>
+        </xsl:choose>
+        <xsl:text>),
+</xsl:text>
+    </xsl:template>
+</xsl:stylesheet>
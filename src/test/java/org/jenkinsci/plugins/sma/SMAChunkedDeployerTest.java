@@ -0,0 +1,93 @@
+package org.jenkinsci.plugins.sma;
+
+import com.google.common.io.Files;
+import com.sforce.soap.metadata.TestLevel;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SMAChunkedDeployerTest
+{
+    private File localPath;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        localPath = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        FileUtils.deleteDirectory(localPath);
+    }
+
+    /**
+     * Test that a validation that needs more than one chunk is refused before anything is sent to the organization.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testChunkedValidationIsRefused() throws Exception
+    {
+        SMAChunker chunker = new SMAChunker(1, SMAChunker.MAX_UNZIPPED_SIZE);
+
+        for (String path : new String[]{"src/classes/Foo.cls", "src/classes/Bar.cls"})
+        {
+            SMAMetadata metadata = SMAMetadataTypes.createMetadataObject(path, null);
+            chunker.add(metadata, Collections.singletonMap(path.substring(4), ObjectId.zeroId()), 10);
+        }
+
+        List<SMAChunker.Chunk> chunks = chunker.getChunks();
+        ByteArrayOutputStream console = new ByteArrayOutputStream();
+
+        // Without a connection, any attempt to deploy would fail with an exception
+        SMAChunkedDeployer deployer = new SMAChunkedDeployer(null, null, "36.0", localPath,
+                new PrintStream(console, true));
+
+        assertTrue(chunks.size() > 1);
+        assertFalse(deployer.deploy(chunks, new SMAPackage(new ArrayList<SMAMetadata>(), true), TestLevel.NoTestRun,
+                null, true));
+        assertTrue(deployer.getResults().contains("can't be validated"));
+    }
+
+    /**
+     * Test that a chunk with Apex is refused when none of the specified tests are deployed by the time it is sent.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testUntestedChunkIsRefused() throws Exception
+    {
+        SMAChunker chunker = new SMAChunker(1, SMAChunker.MAX_UNZIPPED_SIZE);
+
+        for (String path : new String[]{"src/classes/Foo.cls", "src/classes/FooTest.cls"})
+        {
+            SMAMetadata metadata = SMAMetadataTypes.createMetadataObject(path, null);
+            chunker.add(metadata, Collections.singletonMap(path.substring(4), ObjectId.zeroId()), 10);
+        }
+
+        List<SMAChunker.Chunk> chunks = chunker.getChunks();
+
+        // Without a connection, any attempt to deploy would fail with an exception
+        SMAChunkedDeployer deployer = new SMAChunkedDeployer(null, null, "36.0", localPath,
+                new PrintStream(new ByteArrayOutputStream(), true));
+
+        assertTrue(chunks.size() > 1);
+        assertFalse(deployer.deploy(chunks, new SMAPackage(new ArrayList<SMAMetadata>(), true),
+                TestLevel.RunSpecifiedTests, new String[]{"FooTest"}, false));
+        assertTrue(deployer.getResults().contains("chunk 1 of 2 contains Apex"));
+    }
+}
@@ -0,0 +1,118 @@
+package org.jenkinsci.plugins.sma;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SMAChunkerTest
+{
+    @Test
+    public void testSingleChunk() throws Exception
+    {
+        SMAChunker chunker = new SMAChunker(SMAChunker.MAX_FILES, SMAChunker.MAX_UNZIPPED_SIZE);
+        add(chunker, "src/classes/Foo.cls", 100);
+        add(chunker, "src/pages/Foo.page", 100);
+
+        List<SMAChunker.Chunk> chunks = chunker.getChunks();
+
+        assertEquals(1, chunks.size());
+        assertEquals(2, chunks.get(0).getMembers().size());
+        assertEquals(4, chunks.get(0).getFileCount());
+        assertEquals(200, chunks.get(0).getSize());
+    }
+
+    @Test
+    public void testDependencyOrder() throws Exception
+    {
+        SMAChunker chunker = new SMAChunker(SMAChunker.MAX_FILES, SMAChunker.MAX_UNZIPPED_SIZE);
+        add(chunker, "src/profiles/Admin.profile", 10);
+        add(chunker, "src/reports/Sales/Pipeline.report", 10);
+        add(chunker, "src/pages/Foo.page", 10);
+        add(chunker, "src/classes/Foo.cls", 10);
+        add(chunker, "src/reports/Sales-meta.xml", 10);
+        add(chunker, "src/objects/Account.object", 10);
+
+        List<SMAMetadata> members = chunker.getChunks().get(0).getMembers();
+
+        assertEquals("CustomObject", members.get(0).getMetadataType());
+        assertEquals("ApexClass", members.get(1).getMetadataType());
+        assertEquals("ApexPage", members.get(2).getMetadataType());
+        assertEquals(SMAMetadata.Kind.FOLDER, members.get(3).getKind());
+        assertEquals("Sales/Pipeline", members.get(4).getMember());
+        assertEquals("Profile", members.get(5).getMetadataType());
+    }
+
+    @Test
+    public void testLimits() throws Exception
+    {
+        // Every class has a body and a -meta.xml, so three classes fit in a chunk of seven files, and Class4 leaves
+        // no room for another class in its chunk
+        SMAChunker chunker = new SMAChunker(7, 1000);
+
+        for (int i = 0; i < 10; i++)
+        {
+            add(chunker, "src/classes/Class" + i + ".cls", i == 4 ? 900 : 100);
+        }
+
+        List<SMAChunker.Chunk> chunks = chunker.getChunks();
+
+        assertEquals(4, chunks.size());
+
+        int members = 0;
+        for (SMAChunker.Chunk chunk : chunks)
+        {
+            assertTrue(chunk.getFileCount() <= 7);
+            assertTrue(chunk.getSize() <= 1000);
+            members += chunk.getMembers().size();
+        }
+
+        assertEquals(10, members);
+        assertEquals(2, chunks.get(1).getMembers().size());
+        assertEquals("Class3", chunks.get(1).getMembers().get(0).getMember());
+        assertEquals(1000, chunks.get(1).getSize());
+        assertEquals("Class5", chunks.get(2).getMembers().get(0).getMember());
+    }
+
+    @Test
+    public void testSplit() throws Exception
+    {
+        SMAChunker chunker = new SMAChunker(SMAChunker.MAX_FILES, SMAChunker.MAX_UNZIPPED_SIZE);
+        add(chunker, "src/objects/Account.object", 10);
+        add(chunker, "src/classes/Foo.cls", 20);
+        add(chunker, "src/pages/Foo.page", 30);
+
+        List<SMAChunker.Chunk> halves = chunker.getChunks().get(0).split();
+
+        assertEquals(1, halves.get(0).getMembers().size());
+        assertEquals("Account", halves.get(0).getMembers().get(0).getMember());
+        assertEquals(10, halves.get(0).getSize());
+        assertEquals(2, halves.get(1).getMembers().size());
+        assertEquals(4, halves.get(1).getFileCount());
+        assertEquals(50, halves.get(1).getSize());
+    }
+
+    private static void add(SMAChunker chunker, String path, long size) throws Exception
+    {
+        SMAMetadata metadata = SMAMetadataTypes.createMetadataObject(path, null);
+        Map<String, ObjectId> files = new HashMap<String, ObjectId>();
+        String entry = path.substring("src/".length());
+
+        if (metadata.getKind() != SMAMetadata.Kind.FOLDER)
+        {
+            files.put(entry, ObjectId.zeroId());
+        }
+
+        if (metadata.hasMetaxml())
+        {
+            files.put(metadata.getKind() == SMAMetadata.Kind.FOLDER ? entry : entry + "-meta.xml", ObjectId.zeroId());
+        }
+
+        chunker.add(metadata, files, size);
+    }
+}
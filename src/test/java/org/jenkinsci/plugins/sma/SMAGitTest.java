@@ -1,24 +1,38 @@
 package org.jenkinsci.plugins.sma;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.eclipse.jgit.api.CreateBranchCommand;
 import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.Status;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.RefUpdate;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class SMAGitTest
 {
@@ -72,13 +86,17 @@ public class SMAGitTest
         //Delete the deletion file, modify the modification file, and add the addition file
         new Git(repository).rm().addFilepattern("src/classes/deleteThis.cls").call();
         new Git(repository).rm().addFilepattern("src/classes/deleteThis.cls-meta.xml").call();
-        modification.setExecutable(true);
+        PrintWriter modify = new PrintWriter(modification);
+        modify.println("modified");
+        modify.close();
         addition = createFile("addThis.trigger", triggersPath);
         addMeta = createFile("addThis.trigger-meta.xml", triggersPath);
         new Git(repository).add().addFilepattern("src/pages/modifyThis.page").call();
         new Git(repository).add().addFilepattern("src/pages/modifyThis.page-meta.xml").call();
         new Git(repository).add().addFilepattern("src/triggers/addThis.trigger").call();
         new Git(repository).add().addFilepattern("src/triggers/addThis.trigger-meta.xml").call();
+        createFile("README.md", localPath);
+        new Git(repository).add().addFilepattern("README.md").call();
         new Git(repository).add().addFilepattern("src/classes/deleteThis.cls").call();
         new Git(repository).add().addFilepattern("src/classes/deleteThis.cls-meta.xml").call();
 
@@ -98,6 +116,12 @@ public class SMAGitTest
     @After
     public void tearDown() throws Exception
     {
+        if (git != null)
+        {
+            git.close();
+        }
+
+        SMARepositoryCache.close(repository.getDirectory());
         repository.close();
         FileUtils.deleteDirectory(localPath);
     }
@@ -121,13 +145,221 @@ public class SMAGitTest
 
         git = new SMAGit(gitDir, newSha, oldSha, SMAGit.Mode.STD);
 
-        Map<String, byte[]> deletedContents = git.getDeletedMetadata();
-        Map<String, byte[]> modifiedContents = git.getUpdatedMetadata();
-        Map<String, byte[]> addedContents = git.getNewMetadata();
+        Map<String, ObjectId> deletedContents = git.getDeletedMetadata();
+        Map<String, ObjectId> modifiedContents = git.getUpdatedMetadata();
+        Map<String, ObjectId> addedContents = git.getNewMetadata();
 
         assertEquals(expectedAdds.size(), addedContents.size());
         assertEquals(expectedMods.size(), modifiedContents.size());
         assertEquals(expectedDelete.size(), deletedContents.size());
+        assertEquals(expectedAdds.keySet(), addedContents.keySet());
+        assertEquals(expectedMods.keySet(), modifiedContents.keySet());
+        assertEquals(expectedDelete.keySet(), deletedContents.keySet());
+    }
+
+    /**
+     * Test that the classified diff is cached in the workspace and reused for the same pair of trees.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testDiffCache() throws Exception
+    {
+        git = new SMAGit(gitDir, newSha, oldSha, SMAGit.Mode.STD);
+        SMAChangeSet computed = git.getChangeSet();
+
+        File[] cached = new File(localPath, "sma/diffcache").listFiles();
+        assertEquals(1, cached.length);
+
+        git = new SMAGit(gitDir, newSha, oldSha, SMAGit.Mode.STD);
+        SMAChangeSet reused = git.getChangeSet();
+
+        assertEquals(computed.getAdditions(), reused.getAdditions());
+        assertEquals(computed.getModifications(), reused.getModifications());
+        assertEquals(computed.getOriginals(), reused.getOriginals());
+        assertEquals(computed.getDeletions(), reused.getDeletions());
+
+    }
+
+    /**
+     * Test that the same trees classified with different options are cached side by side.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testDiffCacheOptions() throws Exception
+    {
+        ObjectId oldTree = repository.resolve(oldSha + "^{tree}");
+        ObjectId newTree = repository.resolve(newSha + "^{tree}");
+
+        git = new SMAGit(gitDir, newSha, oldSha, SMAGit.Mode.STD);
+        git.setDiffCacheSize(0);
+        SMAChangeSet computed = git.getChangeSet();
+        SMAChangeSet empty = new SMAChangeSet("src/");
+
+        File cacheDir = new File(localPath, "sma/optionscache");
+        SMADiffCache cache = new SMADiffCache(cacheDir, 1024 * 1024);
+        cache.put(oldTree, newTree, "first", computed);
+        cache.put(oldTree, newTree, "second", empty);
+
+        assertEquals(2, cacheDir.listFiles().length);
+        assertEquals(computed.getAdditions(), cache.get(oldTree, newTree, "src/", "first").getAdditions());
+        assertEquals(computed.getDeletions(), cache.get(oldTree, newTree, "src/", "first").getDeletions());
+        assertEquals(0, cache.get(oldTree, newTree, "src/", "second").size());
+        assertTrue(cache.get(oldTree, newTree, "src/", "third") == null);
+    }
+
+    /**
+     * Test that changes which don't survive to the end of the range are dropped from the change set.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testNetChanges() throws Exception
+    {
+        File classesPath = new File(localPath, "src/classes");
+        File pagesPath = new File(localPath, "src/pages");
+        classesPath.mkdirs();
+
+        // Add a component and delete it again
+        createFile("addAndDelete.cls", classesPath);
+        new Git(repository).add().addFilepattern("src/classes/addAndDelete.cls").call();
+        new Git(repository).commit().setMessage("Add addAndDelete").call();
+        new Git(repository).rm().addFilepattern("src/classes/addAndDelete.cls").call();
+        new Git(repository).commit().setMessage("Delete addAndDelete").call();
+
+        // Touch a component and revert it
+        createFile("modifyThis.page", pagesPath);
+        new Git(repository).add().addFilepattern("src/pages/modifyThis.page").call();
+        new Git(repository).commit().setMessage("Touch modifyThis").call();
+        PrintWriter revert = new PrintWriter(modification);
+        revert.println("modified");
+        revert.close();
+        new Git(repository).add().addFilepattern("src/pages/modifyThis.page").call();
+
+        // Only change the file mode of another
+        modifyMeta.setExecutable(true);
+        new Git(repository).add().addFilepattern("src/pages/modifyThis.page-meta.xml").call();
+        String lastSha = new Git(repository).commit().setMessage("Revert modifyThis").call().getName();
+
+        git = new SMAGit(gitDir, lastSha, newSha, SMAGit.Mode.STD);
+
+        assertEquals(0, git.getChangeSet().size());
+        assertTrue(git.getOriginalMetadata().isEmpty());
+    }
+
+    /**
+     * Test that a renamed component is deployed under its new name and destroyed under its old one.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testRename() throws Exception
+    {
+        File pagesPath = new File(localPath, "src/pages");
+        modification.renameTo(new File(pagesPath, "renameThis.page"));
+        modifyMeta.renameTo(new File(pagesPath, "renameThis.page-meta.xml"));
+        new Git(repository).rm().addFilepattern("src/pages/modifyThis.page").call();
+        new Git(repository).rm().addFilepattern("src/pages/modifyThis.page-meta.xml").call();
+        new Git(repository).add().addFilepattern("src/pages/renameThis.page").call();
+        new Git(repository).add().addFilepattern("src/pages/renameThis.page-meta.xml").call();
+        String renameSha = new Git(repository).commit().setMessage("Rename modifyThis").call().getName();
+
+        git = new SMAGit(gitDir, renameSha, newSha, SMAGit.Mode.STD);
+
+        assertTrue(git.getNewMetadata().containsKey("src/pages/renameThis.page"));
+        assertTrue(git.getDeletedMetadata().containsKey("src/pages/modifyThis.page"));
+        assertTrue(git.getUpdatedMetadata().isEmpty());
+    }
+
+    /**
+     * Test listing the files of a bundle directory at the current and an older commit.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testListFiles() throws Exception
+    {
+        File bundlePath = new File(localPath, "src/aura/Banner");
+        bundlePath.mkdirs();
+        createFile("Banner.cmp", bundlePath);
+        new Git(repository).add().addFilepattern("src/aura/Banner/Banner.cmp").call();
+        String bundleSha = new Git(repository).commit().setMessage("Add Banner").call().getName();
+
+        PrintWriter controller = new PrintWriter(new File(bundlePath, "BannerController.js"));
+        controller.println("({})");
+        controller.close();
+        new Git(repository).add().addFilepattern("src/aura/Banner/BannerController.js").call();
+        String controllerSha = new Git(repository).commit().setMessage("Add BannerController").call().getName();
+
+        git = new SMAGit(gitDir, controllerSha, bundleSha, SMAGit.Mode.STD);
+
+        Map<String, ObjectId> current = git.listFiles("src/aura/Banner/", controllerSha);
+        assertEquals(2, current.size());
+        assertTrue(current.containsKey("src/aura/Banner/BannerController.js"));
+
+        Map<String, ObjectId> previous = git.listFiles("src/aura/Banner/", bundleSha);
+        assertEquals(1, previous.size());
+        assertEquals(current.get("src/aura/Banner/Banner.cmp"), previous.get("src/aura/Banner/Banner.cmp"));
+
+        assertTrue(git.listFiles("src/aura/Banner/", oldSha).isEmpty());
+        assertTrue(git.listFiles("src/aura/Ban/", controllerSha).isEmpty());
+    }
+
+    /**
+     * Test that builds of the same repository share one open Repository until it is closed.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testSharedRepository() throws Exception
+    {
+        git = new SMAGit(gitDir, newSha, oldSha, SMAGit.Mode.STD);
+        SMAGit rerun = new SMAGit(gitDir, newSha, oldSha, SMAGit.Mode.STD);
+
+        assertTrue(git.getRepo().getRepository() == rerun.getRepo().getRepository());
+
+        rerun.close();
+        git.close();
+        assertTrue(SMARepositoryCache.isCached(repository.getDirectory()));
+
+        SMARepositoryCache.close(repository.getDirectory());
+        assertTrue(!SMARepositoryCache.isCached(repository.getDirectory()));
+    }
+
+    /**
+     * Test that idle repositories are closed by the sweep and that shutting down closes the rest.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testIdleRepositorySweep() throws Exception
+    {
+        try
+        {
+            git = new SMAGit(gitDir, newSha, oldSha, SMAGit.Mode.STD);
+            git.close();
+            git = null;
+
+            SMARepositoryCache.closeIdle();
+            assertTrue(SMARepositoryCache.isCached(repository.getDirectory()));
+
+            SMARepositoryCache.setIdleTimeout(0);
+            new SMARepositoryCache.IdleSweep().doRun();
+            assertTrue(!SMARepositoryCache.isCached(repository.getDirectory()));
+
+            SMARepositoryCache.setIdleTimeout(10 * 60 * 1000);
+            git = new SMAGit(gitDir, newSha, oldSha, SMAGit.Mode.STD);
+            git.close();
+            git = null;
+
+            SMARepositoryCache.shutdown();
+            assertTrue(!SMARepositoryCache.isCached(repository.getDirectory()));
+        }
+        finally
+        {
+            SMARepositoryCache.setIdleTimeout(10 * 60 * 1000);
+        }
     }
 
     /**
@@ -149,6 +381,34 @@ public class SMAGitTest
         Map<String, byte[]> allMetadata = git.getAllMetadata();
 
         assertEquals(expectedContents.size(), allMetadata.size());
+        assertEquals(expectedContents.keySet(), allMetadata.keySet());
+
+        for (String member : allMetadata.keySet())
+        {
+            assertEquals(new String(git.getBlob(member, newSha)), new String(allMetadata.get(member)));
+        }
+    }
+
+    /**
+     * Test that loading blobs across multiple threads returns the same ordered contents.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testParallelBlobLoading() throws Exception
+    {
+        git = new SMAGit(gitDir, newSha, null, SMAGit.Mode.INI);
+        Map<String, byte[]> sequential = git.getAllMetadata();
+
+        git.setBlobLoaderThreads(4);
+        Map<String, byte[]> parallel = git.getAllMetadata();
+
+        assertEquals(new ArrayList<String>(sequential.keySet()), new ArrayList<String>(parallel.keySet()));
+
+        for (String member : sequential.keySet())
+        {
+            assertEquals(new String(sequential.get(member)), new String(parallel.get(member)));
+        }
     }
 
     /**
@@ -178,6 +438,56 @@ public class SMAGitTest
         assertEquals(expectedContents.size(), allMetadata.size());
     }
 
+    /**
+     * Test that pull requests are diffed against the merge base when the target branch has moved on.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testPullRequestMergeBase() throws Exception
+    {
+        // Move the target branch on with a change that is not part of the pull request
+        new Git(repository).checkout().setName("target").setCreateBranch(true).setStartPoint(oldSha).call();
+        createFile("targetOnly.cls", new File(localPath, "src/classes"));
+        new Git(repository).add().addFilepattern("src/classes/targetOnly.cls").call();
+        RevCommit targetCommit = new Git(repository).commit().setMessage("Add targetOnly").call();
+
+        RefUpdate remoteTarget = repository.updateRef("refs/remotes/origin/target");
+        remoteTarget.setNewObjectId(targetCommit);
+        remoteTarget.update();
+
+        git = new SMAGit(gitDir, newSha, "target", SMAGit.Mode.PRB);
+
+        assertEquals(oldSha, git.getPrevCommit());
+        assertTrue(!git.getDeletedMetadata().containsKey("src/classes/targetOnly.cls"));
+        assertTrue(git.getNewMetadata().containsKey("src/triggers/addThis.trigger"));
+        assertTrue(new File(localPath, "sma/mergebase/" + newSha + "-" + targetCommit.getName()).exists());
+
+        // Reruns reuse the merge base
+        SMAGit rerun = new SMAGit(gitDir, newSha, "target", SMAGit.Mode.PRB);
+        assertEquals(oldSha, rerun.getPrevCommit());
+        rerun.close();
+    }
+
+    /**
+     * Test that a pull request against a target branch that can't be resolved names the branch.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testPullRequestMissingTarget() throws Exception
+    {
+        try
+        {
+            git = new SMAGit(gitDir, newSha, "missing", SMAGit.Mode.PRB);
+            fail("Expected the missing target branch to be reported");
+        }
+        catch (IOException e)
+        {
+            assertTrue(e.getMessage().contains("missing"));
+        }
+    }
+
     /**
      * Test the ability to update the package manifest.
      *
@@ -186,28 +496,49 @@ public class SMAGitTest
     @Test
     public void testCommitPackageXML() throws Exception
     {
-        Map<String, byte[]> metadataContents = new HashMap<String, byte[]>();
+        Map<String, ObjectId> metadataContents = new HashMap<String, ObjectId>();
         List<SMAMetadata> metadata = new ArrayList<SMAMetadata>();
 
         git = new SMAGit(gitDir, newSha, oldSha, SMAGit.Mode.STD);
-        metadataContents = git.getUpdatedMetadata();
+        metadataContents.putAll(git.getUpdatedMetadata());
         metadataContents.putAll(git.getNewMetadata());
 
         for (String s : metadataContents.keySet())
         {
-            metadata.add(SMAMetadataTypes.createMetadataObject(s, metadataContents.get(s)));
+            metadata.add(SMAMetadataTypes.createMetadataObject(s, git.getBlob(metadataContents.get(s))));
         }
 
         SMAPackage manifest = new SMAPackage(metadata, false);
 
         Boolean createdManifest = git.updatePackageXML(
-                localPath.getPath(),
                 "Test Guy",
                 "testguy@example.net",
                 manifest
         );
 
         assertTrue(createdManifest);
+
+        String head = repository.resolve("HEAD").getName();
+        assertEquals(manifest.getPackage(), new String(git.getBlob("unpackaged/package.xml", head)));
+        assertEquals(newSha, repository.resolve("HEAD~1").getName());
+
+        RevWalk revWalk = new RevWalk(repository);
+        RevCommit manifestCommit = revWalk.parseCommit(repository.resolve("HEAD"));
+        revWalk.release();
+
+        assertEquals("Test Guy", manifestCommit.getAuthorIdent().getName());
+        assertEquals("testguy@example.net", manifestCommit.getAuthorIdent().getEmailAddress());
+        assertEquals(manifestCommit.getAuthorIdent().getName(), manifestCommit.getCommitterIdent().getName());
+
+        // The working tree and the index should match the commit
+        File packageXml = new File(localPath.getPath() + "/unpackaged/package.xml");
+        assertEquals(manifest.getPackage(), FileUtils.readFileToString(packageXml));
+
+        Status status = new Git(repository).status().call();
+        assertTrue(!status.getAdded().contains("unpackaged/package.xml"));
+        assertTrue(!status.getChanged().contains("unpackaged/package.xml"));
+        assertTrue(!status.getModified().contains("unpackaged/package.xml"));
+        assertTrue(!status.getUntracked().contains("unpackaged/package.xml"));
     }
 
     /**
@@ -224,22 +555,21 @@ public class SMAGitTest
         new Git(repository).add().addFilepattern("src/package.xml").call();
         new Git(repository).commit().setMessage("Add package.xml").call();
 
-        Map<String, byte[]> metadataContents = new HashMap<String, byte[]>();
+        Map<String, ObjectId> metadataContents = new HashMap<String, ObjectId>();
         List<SMAMetadata> metadata = new ArrayList<SMAMetadata>();
 
         git = new SMAGit(gitDir, newSha, oldSha, SMAGit.Mode.STD);
-        metadataContents = git.getUpdatedMetadata();
+        metadataContents.putAll(git.getUpdatedMetadata());
         metadataContents.putAll(git.getNewMetadata());
 
         for (String s : metadataContents.keySet())
         {
-            metadata.add(SMAMetadataTypes.createMetadataObject(s, metadataContents.get(s)));
+            metadata.add(SMAMetadataTypes.createMetadataObject(s, git.getBlob(metadataContents.get(s))));
         }
 
         SMAPackage manifest = new SMAPackage(metadata, false);
 
         Boolean createdManifest = git.updatePackageXML(
-                localPath.getPath(),
                 "Test Guy",
                 "testguy@example.net",
                 manifest
@@ -247,9 +577,250 @@ public class SMAGitTest
 
         assertTrue(createdManifest);
 
-        // Also check to make sure we didn't create the default package
+        // Also check to make sure we updated the existing package instead of creating the default package
+        String head = repository.resolve("HEAD").getName();
+        assertEquals(manifest.getPackage(), new String(git.getBlob("src/package.xml", head)));
+
         File unexpectedPackage = new File(localPath.getPath() + "/unpackaged/package.xml");
         assertTrue(!unexpectedPackage.exists());
+
+        assertEquals(manifest.getPackage(), FileUtils.readFileToString(existingPackage));
+
+        Status status = new Git(repository).status().call();
+        assertTrue(!status.getChanged().contains("src/package.xml"));
+        assertTrue(!status.getModified().contains("src/package.xml"));
+    }
+
+    /**
+     * Test that blobs are streamed from the repository into the deployment package.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testStreamZipPackage() throws Exception
+    {
+        git = new SMAGit(gitDir, newSha, oldSha, SMAGit.Mode.STD);
+
+        Map<String, ObjectId> deployData = new HashMap<String, ObjectId>();
+        List<SMAMetadata> metadata = new ArrayList<SMAMetadata>();
+
+        for (String s : git.getNewMetadata().keySet())
+        {
+            deployData.put(s, git.getNewMetadata().get(s));
+            metadata.add(SMAMetadataTypes.createMetadataObject(s, null));
+        }
+
+        File zip = SMAUtility.zipPackage(
+                deployData,
+                git,
+                new SMAPackage(metadata, false),
+                new SMAPackage(new ArrayList<SMAMetadata>(), true),
+                new File(localPath, "package.zip"),
+                Deflater.DEFAULT_COMPRESSION,
+                1,
+                new SMAZipStats()
+        );
+
+        Map<String, String> zipped = new HashMap<String, String>();
+        ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(SMAUtility.readZip(zip)));
+        ZipEntry entry;
+
+        while ((entry = zis.getNextEntry()) != null)
+        {
+            zipped.put(entry.getName(), new String(IOUtils.toByteArray(zis)));
+        }
+
+        zis.close();
+
+        assertTrue(zipped.containsKey("package.xml"));
+        assertTrue(zipped.containsKey("destructiveChanges.xml"));
+
+        for (String s : deployData.keySet())
+        {
+            assertEquals(new String(git.getBlob(s, newSha)), zipped.get(s));
+        }
+    }
+
+    /**
+     * Test that a package streamed from the repository to a file is the same package that is built in memory from
+     * the contents of its blobs.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testZipPackageToFile() throws Exception
+    {
+        git = new SMAGit(gitDir, newSha, oldSha, SMAGit.Mode.STD);
+
+        Map<String, ObjectId> deployData = new HashMap<String, ObjectId>(git.getNewMetadata());
+        Map<String, byte[]> contents = new HashMap<String, byte[]>();
+        List<SMAMetadata> metadata = new ArrayList<SMAMetadata>();
+
+        for (String s : deployData.keySet())
+        {
+            contents.put(s, git.getBlob(deployData.get(s)));
+            metadata.add(SMAMetadataTypes.createMetadataObject(s, null));
+        }
+
+        SMAPackage manifest = new SMAPackage(metadata, false);
+        SMAPackage destructiveChanges = new SMAPackage(new ArrayList<SMAMetadata>(), true);
+        File zipFile = new File(localPath, "package.zip");
+
+        assertEquals(zipFile, SMAUtility.zipPackage(deployData, git, manifest, destructiveChanges, zipFile,
+                Deflater.DEFAULT_COMPRESSION, 1, new SMAZipStats()));
+        assertArrayEquals(SMAUtility.zipPackage(contents, manifest, destructiveChanges).toByteArray(),
+                SMAUtility.readZip(zipFile));
+        assertEquals(zipFile.length(), SMAUtility.readZip(zipFile).length);
+    }
+
+    /**
+     * Test that a package compressed in parallel holds the same entries as one written sequentially.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testParallelZipPackage() throws Exception
+    {
+        git = new SMAGit(gitDir, newSha, oldSha, SMAGit.Mode.STD);
+
+        Map<String, ObjectId> deployData = new HashMap<String, ObjectId>(git.getNewMetadata());
+        List<SMAMetadata> metadata = new ArrayList<SMAMetadata>();
+
+        for (String s : deployData.keySet())
+        {
+            metadata.add(SMAMetadataTypes.createMetadataObject(s, null));
+        }
+
+        SMAPackage manifest = new SMAPackage(metadata, false);
+        SMAPackage destructiveChanges = new SMAPackage(new ArrayList<SMAMetadata>(), true);
+        File sequential = SMAUtility.zipPackage(deployData, git, manifest, destructiveChanges,
+                new File(localPath, "sequential.zip"), 9, 1, new SMAZipStats());
+        File parallel = SMAUtility.zipPackage(deployData, git, manifest, destructiveChanges,
+                new File(localPath, "parallel.zip"), 9, 4, new SMAZipStats());
+
+        assertEquals(unzip(sequential), unzip(parallel));
+
+        // The central directory lists every entry
+        ZipFile zipFile = new ZipFile(parallel);
+        assertEquals(deployData.size() + 2, zipFile.size());
+        zipFile.close();
+        assertArrayEquals(SMAUtility.readZip(parallel), SMAUtility.readZip(SMAUtility.zipPackage(deployData, git,
+                manifest, destructiveChanges, new File(localPath, "parallel2.zip"), 9, 4, new SMAZipStats())));
+    }
+
+    /**
+     * Test that blobs above the stream file threshold are streamed into packages written sequentially and in
+     * parallel, and that the stored ones are recorded.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testParallelZipLargeBlobs() throws Exception
+    {
+        File resourcesPath = new File(localPath, "src/staticresources");
+        resourcesPath.mkdirs();
+
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 3 * 1024 * 1024)
+        {
+            text.append("public class Large { Integer line").append(text.length()).append("; }\n");
+        }
+
+        byte[] random = new byte[3 * 1024 * 1024];
+        new Random(42).nextBytes(random);
+
+        FileUtils.writeStringToFile(new File(localPath, "src/classes/Large.cls"), text.toString());
+        FileUtils.writeByteArrayToFile(new File(resourcesPath, "Library.resource"), random);
+        new Git(repository).add().addFilepattern("src").call();
+        String largeSha = new Git(repository).commit().setMessage("Add large files").call().getName();
+
+        SMAWindowCache.configure(false, 8 * 1024, 10 * 1024 * 1024, 1024 * 1024);
+
+        try
+        {
+            git = new SMAGit(gitDir, largeSha, newSha, SMAGit.Mode.STD);
+            git.setBlobLoaderThreads(4);
+
+            Map<String, ObjectId> deployData = new HashMap<String, ObjectId>(git.getNewMetadata());
+            List<SMAMetadata> metadata = new ArrayList<SMAMetadata>();
+
+            for (String s : deployData.keySet())
+            {
+                metadata.add(SMAMetadataTypes.createMetadataObject(s, null));
+            }
+
+            for (int zipThreads : new int[]{1, 4})
+            {
+                SMAZipStats stats = new SMAZipStats();
+                File zipFile = SMAUtility.zipPackage(deployData, git, new SMAPackage(metadata, false),
+                        new SMAPackage(new ArrayList<SMAMetadata>(), true), new File(localPath, "large.zip"), 6,
+                        zipThreads, stats);
+
+                ZipFile zip = new ZipFile(zipFile);
+
+                try
+                {
+                    assertEquals(deployData.size() + 2, zip.size());
+                    assertEquals(ZipEntry.DEFLATED, zip.getEntry("src/classes/Large.cls").getMethod());
+                    assertEquals(text.toString(), IOUtils.toString(zip.getInputStream(
+                            zip.getEntry("src/classes/Large.cls"))));
+                    assertEquals(ZipEntry.STORED, zip.getEntry("src/staticresources/Library.resource").getMethod());
+                    assertArrayEquals(random, IOUtils.toByteArray(zip.getInputStream(
+                            zip.getEntry("src/staticresources/Library.resource"))));
+                }
+                finally
+                {
+                    zip.close();
+                }
+
+                assertEquals(deployData.size() + 2, unzip(zipFile).size());
+                assertTrue(stats.getSavedBytes() > 0);
+                assertEquals(1, stats.getStoredEntries());
+                assertEquals(random.length, stats.getStoredBytes());
+            }
+        }
+        finally
+        {
+            SMAWindowCache.configure(false, 8 * 1024, 10 * 1024 * 1024, 50 * 1024 * 1024);
+        }
+    }
+
+    private static Map<String, String> unzip(File zipFile) throws Exception
+    {
+        Map<String, String> zipped = new HashMap<String, String>();
+        ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(SMAUtility.readZip(zipFile)));
+        ZipEntry entry;
+
+        while ((entry = zis.getNextEntry()) != null)
+        {
+            zipped.put(entry.getName(), new String(IOUtils.toByteArray(zis)));
+        }
+
+        zis.close();
+
+        return zipped;
+    }
+
+    /**
+     * Test that the package.xml closest to the source root is found through the index and cached for the job.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testFindPackage() throws Exception
+    {
+        File nestedDir = new File(localPath, "src/aaa");
+        nestedDir.mkdirs();
+        createFile("package.xml", nestedDir);
+        createFile("package.xml", new File(localPath, "src"));
+        new Git(repository).add().addFilepattern("src/aaa/package.xml").call();
+        new Git(repository).add().addFilepattern("src/package.xml").call();
+
+        git = new SMAGit(gitDir, newSha, oldSha, SMAGit.Mode.STD);
+
+        assertEquals("src/package.xml", git.findPackage());
+        assertTrue(new File(localPath, "sma/package.location").exists());
+        assertEquals("src/package.xml", git.findPackage());
     }
 
     private File createFile(String name, File path) throws Exception
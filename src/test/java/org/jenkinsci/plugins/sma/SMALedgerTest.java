@@ -0,0 +1,88 @@
+package org.jenkinsci.plugins.sma;
+
+import com.google.common.io.Files;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SMALedgerTest
+{
+    private File localPath;
+    private Map<String, ObjectId> deployed;
+    private ObjectId apexId, pageId, changedId;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        localPath = Files.createTempDir();
+
+        ObjectInserter.Formatter formatter = new ObjectInserter.Formatter();
+        apexId = formatter.idFor(Constants.OBJ_BLOB, "public class TestApex {}".getBytes());
+        pageId = formatter.idFor(Constants.OBJ_BLOB, "<apex:page/>".getBytes());
+        changedId = formatter.idFor(Constants.OBJ_BLOB, "public class TestApex { }".getBytes());
+
+        deployed = new HashMap<String, ObjectId>();
+        deployed.put("src/classes/TestApex.cls", apexId);
+        deployed.put("src/pages/TestPage.page", pageId);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        FileUtils.deleteDirectory(localPath);
+    }
+
+    @Test
+    public void testChangedComponents() throws Exception
+    {
+        new SMALedger(localPath, "user@example.net", "https://test.salesforce.com")
+                .record(deployed, Collections.<String>emptyList());
+
+        SMALedger ledger = new SMALedger(localPath, "user@example.net", "https://test.salesforce.com");
+
+        Map<String, ObjectId> current = new HashMap<String, ObjectId>(deployed);
+        current.put("src/classes/TestApex.cls", changedId);
+        current.put("src/classes/NewApex.cls", apexId);
+
+        assertEquals(Arrays.asList("src/classes/NewApex.cls", "src/classes/TestApex.cls"),
+                Arrays.asList(ledger.getChanged(current).toArray()));
+    }
+
+    @Test
+    public void testLedgerPerOrg() throws Exception
+    {
+        new SMALedger(localPath, "user@example.net", "https://test.salesforce.com")
+                .record(deployed, Collections.<String>emptyList());
+
+        SMALedger otherOrg = new SMALedger(localPath, "user@example.net", "https://login.salesforce.com");
+
+        assertTrue(otherOrg.getDeployed().isEmpty());
+        assertEquals(deployed.keySet(), otherOrg.getChanged(deployed));
+    }
+
+    @Test
+    public void testDestroyedComponents() throws Exception
+    {
+        SMALedger ledger = new SMALedger(localPath, "user@example.net", "https://test.salesforce.com");
+        ledger.record(deployed, Collections.<String>emptyList());
+        ledger.record(new HashMap<String, ObjectId>(), Arrays.asList("src/pages/TestPage.page"));
+
+        SMALedger reloaded = new SMALedger(localPath, "user@example.net", "https://test.salesforce.com");
+
+        assertEquals(1, reloaded.getDeployed().size());
+        assertEquals(apexId, reloaded.getDeployed().get("src/classes/TestApex.cls"));
+    }
+}
@@ -3,11 +3,18 @@ package org.jenkinsci.plugins.sma;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class SMAMetadataTest {
 
+    // About 96 bytes were measured with shared type data and interned paths, copying them costs several times that
+    private static final long MAX_BYTES_PER_COMPONENT = 128;
+
     private SMAMetadata metadataObject;
     String extension = ".ext";
     String container = "container";
@@ -67,4 +74,52 @@ public class SMAMetadataTest {
             assertTrue(!metadataObject.hasMetaxml());
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testSharedTypeData() throws Exception {
+        SMAMetadata first = SMAMetadataTypes.createMetadataObject("src/classes/First.cls", null);
+        SMAMetadata second = SMAMetadataTypes.createMetadataObject(new String("src/classes/Second.cls"), null);
+
+        assertSame(first.getPath(), second.getPath());
+        assertSame(first.getExtension(), second.getExtension());
+        assertSame(first.getContainer(), second.getContainer());
+        assertSame(first.getMetadataType(), second.getMetadataType());
+    }
+
+    /**
+     * Memory benchmark for full repository plans. Checks the heap retained per component, including its slot in
+     * the plan.
+     */
+    @Test
+    public void testFootprint() throws Exception {
+        String[] containers = {"classes/%d.cls", "pages/%d.page", "triggers/%d.trigger", "objects/%d.object",
+                "reports/Folder%d/Report.report", "aura/Bundle%d/Bundle.cmp"};
+        int components = 100000;
+
+        long before = usedMemory();
+        List<SMAMetadata> plan = new ArrayList<SMAMetadata>(components);
+
+        for (int i = 0; i < components; i++) {
+            String path = "src/" + String.format(containers[i % containers.length], i);
+            plan.add(SMAMetadataTypes.createMetadataObject(path, null));
+        }
+
+        long retained = usedMemory() - before;
+
+        assertEquals(components, plan.size());
+        assertTrue("Components retain " + retained / components + " bytes each, expected at most " +
+                MAX_BYTES_PER_COMPONENT, retained / components <= MAX_BYTES_PER_COMPONENT);
+        assertSame(plan.get(0).getPath(), plan.get(containers.length).getPath());
+    }
+
+    private static long usedMemory() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
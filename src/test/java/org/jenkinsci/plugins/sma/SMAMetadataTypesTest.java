@@ -0,0 +1,146 @@
+package org.jenkinsci.plugins.sma;
+
+import org.junit.Test;
+
+import java.io.InputStream;
+
+import static org.junit.Assert.*;
+
+public class SMAMetadataTypesTest {
+
+    @Test
+    public void testCreateMetadataObject() throws Exception {
+        SMAMetadata apex = SMAMetadataTypes.createMetadataObject("/src/classes/TestApex.cls", null);
+
+        assertEquals("cls", apex.getExtension());
+        assertEquals("classes", apex.getContainer());
+        assertEquals("TestApex", apex.getMember());
+        assertEquals("ApexClass", apex.getMetadataType());
+        assertEquals("/src/classes/", apex.getPath());
+        assertTrue(apex.isValid());
+        assertTrue(apex.hasMetaxml());
+    }
+
+    @Test
+    public void testInvalidMetadata() throws Exception {
+        SMAMetadata readme = SMAMetadataTypes.createMetadataObject("README", null);
+
+        assertEquals("", readme.getExtension());
+        assertEquals("README", readme.getMember());
+        assertEquals("Invalid", readme.getMetadataType());
+        assertFalse(readme.isValid());
+
+        SMAMetadata dotted = SMAMetadataTypes.createMetadataObject("src/some.dir/notes", null);
+
+        assertEquals("", dotted.getExtension());
+        assertEquals("notes", dotted.getMember());
+        assertEquals("src/some.dir/", dotted.getPath());
+    }
+
+    @Test
+    public void testRegistryIsShared() throws Exception {
+        assertSame(SMAMetadataTypes.getRegistry(), SMAMetadataTypes.getRegistry());
+        assertEquals("34.0", SMAMetadataTypes.getAPIVersion());
+        assertNotNull(SMAMetadataTypes.getRegistry().getType("trigger"));
+        assertNull(SMAMetadataTypes.getRegistry().getType("md"));
+    }
+
+    @Test
+    public void testTableMatchesDocument() throws Exception {
+        InputStream document = getClass().getClassLoader()
+                .getResourceAsStream("org/jenkinsci/plugins/sma/salesforceMetadata.xml");
+        SMAMetadataRegistry parsed = SMAMetadataRegistry.parse(document);
+        document.close();
+
+        SMAMetadataRegistry compiled = SMAMetadataTypes.getRegistry();
+
+        assertEquals(parsed.getAPIVersion(), compiled.getAPIVersion());
+        assertEquals(parsed.getTypes().size(), compiled.getTypes().size());
+
+        for (SMAMetadataType type : parsed.getTypes()) {
+            SMAMetadataType table = compiled.getType(type.getExtension());
+
+            assertNotNull(type.getExtension(), table);
+            assertEquals(type.getMetadataType(), table.getMetadataType());
+            assertEquals(type.getContainer(), table.getContainer());
+            assertEquals(type.isDestructible(), table.isDestructible());
+            assertEquals(type.hasMetaxml(), table.hasMetaxml());
+            assertEquals(type.getLayout(), table.getLayout());
+        }
+    }
+
+    @Test
+    public void testRegistryPerVersion() throws Exception {
+        SMAMetadataRegistry registry = SMAMetadataTypes.getRegistry("36");
+
+        assertEquals("36.0", registry.getAPIVersion());
+        assertSame(registry, SMAMetadataTypes.getRegistry("36.0"));
+        assertSame(SMAMetadataTypes.getRegistry(), SMAMetadataTypes.getRegistry(SMAMetadataTypes.getAPIVersion()));
+        assertSame(SMAMetadataTypes.getRegistry(), SMAMetadataTypes.getRegistry(""));
+        assertEquals("ApexClass", registry.createMetadataObject("src/classes/TestApex.cls", null).getMetadataType());
+    }
+
+    @Test
+    public void testInvalidVersion() throws Exception {
+        try {
+            SMAMetadataTypes.getRegistry("v36");
+            fail("Expected an invalid version to be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("v36"));
+        }
+    }
+
+    @Test
+    public void testFolderMetadata() throws Exception {
+        SMAMetadata report = SMAMetadataTypes.createMetadataObject("src/reports/Sales/Pipeline.report", null);
+
+        assertEquals("Report", report.getMetadataType());
+        assertEquals("Sales/Pipeline", report.getMember());
+        assertEquals("src/reports/", report.getPath());
+        assertEquals("reports/Sales/Pipeline.report", report.toString());
+        assertEquals(SMAMetadata.Kind.FILE, report.getKind());
+
+        SMAMetadata folder = SMAMetadataTypes.createMetadataObject("src/reports/Sales-meta.xml", null);
+
+        assertEquals("Report", folder.getMetadataType());
+        assertEquals("Sales", folder.getMember());
+        assertEquals(SMAMetadata.Kind.FOLDER, folder.getKind());
+
+        SMAMetadata template = SMAMetadataTypes.createMetadataObject("src/email/Support/Welcome.email", null);
+
+        assertEquals("EmailTemplate", template.getMetadataType());
+        assertEquals("Support/Welcome", template.getMember());
+        assertEquals("email/Support/Welcome.email", template.toString());
+        assertTrue(template.hasMetaxml());
+
+        SMAMetadata document = SMAMetadataTypes.createMetadataObject("src/documents/Images/logo.png", null);
+
+        assertEquals("Document", document.getMetadataType());
+        assertEquals("Images/logo.png", document.getMember());
+        assertEquals("Images/logo.png", document.getFullName());
+        assertTrue(document.hasMetaxml());
+    }
+
+    @Test
+    public void testBundleMetadata() throws Exception {
+        SMAMetadata controller = SMAMetadataTypes.createMetadataObject("src/aura/Banner/BannerController.js", null);
+        SMAMetadata markup = SMAMetadataTypes.createMetadataObject("src/aura/Banner/Banner.cmp", null);
+
+        assertEquals("AuraDefinitionBundle", controller.getMetadataType());
+        assertEquals("Banner", controller.getMember());
+        assertEquals("src/aura/", controller.getPath());
+        assertEquals(SMAMetadata.Kind.BUNDLE, controller.getKind());
+        assertEquals(controller.getPath() + controller.getFullName(), markup.getPath() + markup.getFullName());
+
+        assertFalse(SMAMetadataTypes.createMetadataObject("src/aura/stray.js", null).isValid());
+    }
+
+    @Test
+    public void testFlatMetadataIsUnchanged() throws Exception {
+        SMAMetadata apex = SMAMetadataTypes.createMetadataObject("project/src/classes/Reports.cls", null);
+
+        assertEquals("ApexClass", apex.getMetadataType());
+        assertEquals("Reports", apex.getMember());
+        assertEquals(SMAMetadata.Kind.FILE, apex.getKind());
+    }
+}
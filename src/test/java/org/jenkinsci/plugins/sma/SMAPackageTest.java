@@ -6,8 +6,11 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 public class SMAPackageTest
@@ -59,6 +62,34 @@ public class SMAPackageTest
         Assert.assertTrue(!testPackage.getPackage().contains("Workflow"));
     }
 
+    @Test
+    public void testPackageBytes() throws Exception
+    {
+        SMAPackage testPackage = new SMAPackage(contents, false);
+        byte[] manifest = testPackage.getPackageBytes();
+
+        Assert.assertSame(manifest, testPackage.getPackageBytes());
+        Assert.assertArrayEquals(testPackage.getPackage().getBytes("UTF-8"), manifest);
+
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        testPackage.writeTo(written);
+
+        Assert.assertArrayEquals(manifest, written.toByteArray());
+    }
+
+    @Test
+    public void testCanonicalOrder() throws Exception
+    {
+        List<SMAMetadata> reversed = new ArrayList<SMAMetadata>(contents);
+        Collections.reverse(reversed);
+
+        String manifest = new SMAPackage(contents, false).getPackage();
+
+        Assert.assertEquals(manifest, new SMAPackage(reversed, false).getPackage());
+        Assert.assertTrue(manifest.indexOf("ApexClass") < manifest.indexOf("ApexPage"));
+        Assert.assertTrue(manifest.indexOf("ApexPage") < manifest.indexOf("ApexTrigger"));
+    }
+
     @After
     public void tearDown() throws Exception
     {
@@ -0,0 +1,25 @@
+package org.jenkinsci.plugins.sma;
+
+import hudson.EnvVars;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SMARunnerTest
+{
+    @Test
+    public void testNumericVariables() throws Exception
+    {
+        EnvVars jobVariables = new EnvVars();
+        jobVariables.put("SMA_ZIP_THREADS", " 4 ");
+        jobVariables.put("SMA_CHUNK_MAX_FILES", "lots");
+        jobVariables.put("SMA_COMPRESSION_LEVEL", "12");
+        jobVariables.put("SMA_CHUNK_MAX_BYTES", "");
+
+        assertEquals(4, SMARunner.getNumber(jobVariables, "SMA_ZIP_THREADS", 1, 1, Integer.MAX_VALUE));
+        assertEquals(10000, SMARunner.getNumber(jobVariables, "SMA_CHUNK_MAX_FILES", 10000, 1, Integer.MAX_VALUE));
+        assertEquals(-1, SMARunner.getNumber(jobVariables, "SMA_COMPRESSION_LEVEL", -1, -1, 9));
+        assertEquals(100, SMARunner.getNumber(jobVariables, "SMA_CHUNK_MAX_BYTES", 100, 1, Long.MAX_VALUE));
+        assertEquals(8, SMARunner.getNumber(jobVariables, "SMA_BLOB_LOADER_THREADS", 8, 1, Integer.MAX_VALUE));
+    }
+}
@@ -1,17 +1,30 @@
 package org.jenkinsci.plugins.sma;
 
 import com.google.common.io.Files;
+import org.apache.commons.io.IOUtils;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 public class SMAUtilityTest
 {
@@ -80,4 +93,84 @@ public class SMAUtilityTest
 
         Assert.assertTrue(zipFile.exists());
     }
+
+    @Test
+    public void testDeterministicZip() throws Exception
+    {
+        Map<String, byte[]> reordered = new LinkedHashMap<String, byte[]>();
+        List<String> names = new ArrayList<String>(metadata.keySet());
+        Collections.reverse(names);
+
+        for (String name : names)
+        {
+            reordered.put(name, metadata.get(name));
+        }
+
+        byte[] first = SMAUtility.zipPackage(metadata, packageManifest, destructiveChange).toByteArray();
+        Thread.sleep(2000);
+        byte[] second = SMAUtility.zipPackage(reordered, packageManifest, destructiveChange).toByteArray();
+
+        Assert.assertArrayEquals(first, second);
+    }
+
+    @Test
+    public void testHashPackage() throws Exception
+    {
+        ObjectInserter.Formatter formatter = new ObjectInserter.Formatter();
+        Map<String, ObjectId> deployData = new HashMap<String, ObjectId>();
+
+        for (String name : metadata.keySet())
+        {
+            deployData.put(name, formatter.idFor(Constants.OBJ_BLOB, metadata.get(name)));
+        }
+
+        String hash = SMAUtility.hashPackage(deployData, packageManifest, destructiveChange);
+
+        Assert.assertEquals(hash, SMAUtility.hashPackage(new TreeMap<String, ObjectId>(deployData),
+                packageManifest, destructiveChange));
+
+        deployData.put("classes/TestApex.cls", formatter.idFor(Constants.OBJ_BLOB, "Changed".getBytes()));
+
+        Assert.assertNotEquals(hash, SMAUtility.hashPackage(deployData, packageManifest, destructiveChange));
+    }
+
+    @Test
+    public void testIsCompressible() throws Exception
+    {
+        byte[] text = new byte[16 * 1024];
+        byte[] random = new byte[16 * 1024];
+        Arrays.fill(text, (byte) 'a');
+        new Random(42).nextBytes(random);
+
+        Assert.assertTrue(SMAUtility.isCompressible("classes/TestApex.cls", text, text.length));
+        Assert.assertTrue(SMAUtility.isCompressible("staticresources/Small.resource", random, 100));
+        Assert.assertFalse(SMAUtility.isCompressible("staticresources/Library.resource", random, random.length));
+        Assert.assertFalse(SMAUtility.isCompressible("documents/Images/Logo.PNG", text, text.length));
+        Assert.assertTrue(SMAUtility.isCompressible("documents/Images/png", text, text.length));
+    }
+
+    @Test
+    public void testStoredEntries() throws Exception
+    {
+        byte[] random = new byte[16 * 1024];
+        new Random(42).nextBytes(random);
+        metadata.put("staticresources/Library.resource", random);
+
+        ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(
+                SMAUtility.zipPackage(metadata, packageManifest, destructiveChange).toByteArray()));
+        ZipEntry entry;
+
+        while ((entry = zis.getNextEntry()) != null)
+        {
+            Assert.assertEquals(entry.getName().endsWith(".resource") ? ZipEntry.STORED : ZipEntry.DEFLATED,
+                    entry.getMethod());
+
+            if (metadata.containsKey(entry.getName()))
+            {
+                Assert.assertArrayEquals(metadata.get(entry.getName()), IOUtils.toByteArray(zis));
+            }
+        }
+
+        zis.close();
+    }
 }
@@ -0,0 +1,59 @@
+package org.jenkinsci.plugins.sma;
+
+import com.google.common.io.Files;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SMAValidationCacheTest
+{
+    private static final String PACKAGE_HASH = "3b18e512dba79e4c8300dd08aeb37f8e728b8dad";
+
+    private File localPath;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        localPath = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        FileUtils.deleteDirectory(localPath);
+    }
+
+    @Test
+    public void testValidatedPackage() throws Exception
+    {
+        String key = SMAValidationCache.getKey(PACKAGE_HASH, "RunSpecifiedTests", new String[]{"BTest", "ATest"});
+
+        SMAValidationCache cache = new SMAValidationCache(localPath, "user@example.net", "https://test.salesforce.com");
+        assertFalse(cache.isValidated(key));
+
+        cache.record(key);
+
+        assertTrue(new SMAValidationCache(localPath, "user@example.net", "https://test.salesforce.com")
+                .isValidated(key));
+        assertFalse(new SMAValidationCache(localPath, "user@example.net", "https://login.salesforce.com")
+                .isValidated(key));
+    }
+
+    @Test
+    public void testValidationKey() throws Exception
+    {
+        String key = SMAValidationCache.getKey(PACKAGE_HASH, "RunSpecifiedTests", new String[]{"BTest", "ATest"});
+
+        assertEquals(key, SMAValidationCache.getKey(PACKAGE_HASH, "RunSpecifiedTests", new String[]{"ATest", "BTest"}));
+        assertNotEquals(key, SMAValidationCache.getKey(PACKAGE_HASH, "RunSpecifiedTests", new String[]{"ATest"}));
+        assertNotEquals(key, SMAValidationCache.getKey(PACKAGE_HASH, "RunLocalTests", null));
+    }
+}
@@ -0,0 +1,42 @@
+package org.jenkinsci.plugins.sma;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SMAWindowCacheTest
+{
+    @After
+    public void tearDown() throws Exception
+    {
+        SMAWindowCache.configure(false, 8 * 1024, 10 * 1024 * 1024, 50 * 1024 * 1024);
+    }
+
+    @Test
+    public void testConfigure() throws Exception
+    {
+        assertTrue(SMAWindowCache.configure(false, 16 * 1024, 20 * 1024 * 1024, 1024 * 1024));
+        assertEquals("mmap=false, windowSize=16384, limit=20971520, streamFileThreshold=1048576",
+                SMAWindowCache.getInstalled());
+
+        // The same configuration is only installed once
+        assertTrue(!SMAWindowCache.configure(false, 16 * 1024, 20 * 1024 * 1024, 1024 * 1024));
+    }
+
+    @Test
+    public void testClampedConfiguration() throws Exception
+    {
+        assertEquals(SMAWindowCache.MIN_WINDOW_SIZE, SMAWindowCache.clampWindowSize(0));
+        assertEquals(8 * 1024, SMAWindowCache.clampWindowSize(8 * 1024));
+        assertEquals(16 * 1024, SMAWindowCache.clampWindowSize(10000));
+        assertEquals(16 * 1024, SMAWindowCache.clampLimit(1000, 16 * 1024));
+        assertEquals(SMAWindowCache.MIN_STREAM_FILE_THRESHOLD, SMAWindowCache.clampStreamFileThreshold(-1));
+
+        // Settings JGit would refuse are installed clamped instead of failing the build
+        SMAWindowCache.configure(false, 10000, 1000, 0);
+        assertEquals("mmap=false, windowSize=16384, limit=16384, streamFileThreshold=65536",
+                SMAWindowCache.getInstalled());
+    }
+}
@@ -0,0 +1,156 @@
+package org.jenkinsci.plugins.sma;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SMAZipWriterTest
+{
+    @Test
+    public void testValidArchive() throws Exception
+    {
+        Map<String, byte[]> entries = getEntries();
+        Map<String, byte[]> unzipped = new LinkedHashMap<String, byte[]>();
+
+        ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zip(entries, 9, 4)));
+        ZipEntry entry;
+
+        while ((entry = zis.getNextEntry()) != null)
+        {
+            // Deflating empty or tiny entries would only make them larger
+            assertEquals(entries.get(entry.getName()).length > 100 ? ZipEntry.DEFLATED : ZipEntry.STORED,
+                    entry.getMethod());
+            unzipped.put(entry.getName(), IOUtils.toByteArray(zis));
+        }
+
+        zis.close();
+
+        assertEquals(entries.keySet().toString(), unzipped.keySet().toString());
+
+        for (String name : entries.keySet())
+        {
+            assertArrayEquals(entries.get(name), unzipped.get(name));
+        }
+    }
+
+    @Test
+    public void testDeterministicArchive() throws Exception
+    {
+        Map<String, byte[]> entries = getEntries();
+        byte[] zip = zip(entries, 6, 4);
+
+        assertArrayEquals(zip, zip(entries, 6, 4));
+        assertArrayEquals(zip, zip(entries, 6, 1));
+    }
+
+    @Test
+    public void testCompressionLevel() throws Exception
+    {
+        Map<String, byte[]> entries = getEntries();
+
+        assertTrue(zip(entries, 9, 2).length < zip(entries, 0, 2).length);
+
+        try
+        {
+            zip(entries, 10, 2);
+            fail("Expected an invalid compression level to be rejected");
+        }
+        catch (IllegalArgumentException e)
+        {
+            assertTrue(e.getMessage().contains("10"));
+        }
+    }
+
+    @Test
+    public void testStoredEntries() throws Exception
+    {
+        Map<String, byte[]> entries = getEntries();
+        byte[] random = new byte[64 * 1024];
+        new Random(42).nextBytes(random);
+        entries.put("staticresources/Library.resource", random);
+        entries.put("documents/Images/Logo.png", "Not actually an image, but named like one".getBytes());
+
+        SMAZipStats stats = new SMAZipStats();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SMAZipWriter writer = new SMAZipWriter(out, 9, 4, stats);
+
+        for (Map.Entry<String, byte[]> entry : entries.entrySet())
+        {
+            writer.add(entry.getKey(), entry.getValue());
+        }
+
+        writer.close();
+
+        ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()));
+        Map<String, Integer> methods = new LinkedHashMap<String, Integer>();
+        ZipEntry entry;
+
+        while ((entry = zis.getNextEntry()) != null)
+        {
+            assertArrayEquals(entries.get(entry.getName()), IOUtils.toByteArray(zis));
+            methods.put(entry.getName(), entry.getMethod());
+        }
+
+        zis.close();
+
+        assertEquals(ZipEntry.STORED, (int) methods.get("staticresources/Library.resource"));
+        assertEquals(ZipEntry.STORED, (int) methods.get("documents/Images/Logo.png"));
+        assertEquals(ZipEntry.DEFLATED, (int) methods.get("classes/Class49.cls"));
+
+        // The package.xml, Empty.cls and Class0.cls entries are too small to deflate
+        assertEquals(5, stats.getStoredEntries());
+        assertEquals(entries.size() - 5, stats.getDeflatedEntries());
+        assertTrue(stats.getStoredBytes() >= random.length);
+        assertTrue(stats.getSavedBytes() > 0);
+        assertTrue(stats.getStoredSavedBytes() > 0);
+        assertTrue(stats.getStatistics().contains("stored: 5 entries"));
+    }
+
+    private static Map<String, byte[]> getEntries()
+    {
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        entries.put("package.xml", "<Package/>".getBytes());
+        entries.put("classes/Empty.cls", new byte[0]);
+
+        for (int i = 0; i < 50; i++)
+        {
+            StringBuilder body = new StringBuilder();
+
+            for (int line = 0; line < i * 20; line++)
+            {
+                body.append("public class Class").append(i).append(" { Integer line").append(line).append("; }\n");
+            }
+
+            entries.put("classes/Class" + i + ".cls", body.toString().getBytes());
+        }
+
+        return entries;
+    }
+
+    private static byte[] zip(Map<String, byte[]> entries, int level, int threads) throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SMAZipWriter writer = new SMAZipWriter(out, level, threads);
+
+        for (Map.Entry<String, byte[]> entry : entries.entrySet())
+        {
+            writer.add(entry.getKey(), entry.getValue());
+        }
+
+        writer.close();
+
+        return out.toByteArray();
+    }
+}